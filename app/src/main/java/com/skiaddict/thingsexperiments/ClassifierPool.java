@@ -0,0 +1,107 @@
+package com.skiaddict.thingsexperiments;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of independent {@link ImageClassifier} instances of one model, each with its own
+ * TensorFlow session and pixel/output buffers, so several frames can be classified at once.
+ * Callers {@link #acquire()} an idle context for each inference and {@link #release} it after.
+ */
+
+public class ClassifierPool {
+    private static final String TAG = ClassifierPool.class.getSimpleName();
+
+    private final List<ImageClassifier> classifiers;
+    private final BlockingQueue<ImageClassifier> idle;
+
+    private ClassifierPool(List<ImageClassifier> classifiers) {
+        this.classifiers = classifiers;
+        idle = new ArrayBlockingQueue<>(classifiers.size(), false, classifiers);
+    }
+
+    /**
+     * Loads {@code size} contexts of the given graph. If a cascade is given but its fast graph
+     * cannot be loaded, the contexts run the full graph only.
+     */
+    public static ClassifierPool create(AssetManager assetManager, String modelFile, String[] labels,
+                                        ImageClassifier.Cascade cascade, int size) throws IOException {
+        ArrayList<ImageClassifier> classifiers = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; ++i) {
+                ImageClassifier classifier = new ImageClassifier(assetManager, modelFile, labels);
+                classifiers.add(classifier);
+                if (null == cascade) {
+                    continue;
+                }
+                try {
+                    classifier.enableCascade(assetManager, cascade);
+                } catch (IOException | RuntimeException e) {
+                    if (i > 0) {
+                        // The first context loaded it; all contexts must behave the same.
+                        throw e;
+                    }
+                    Log.w(TAG, "Unable to load cascade model " + cascade.getModelFile() + ", using full model only", e);
+                    cascade = null;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ImageClassifier classifier : classifiers) {
+                classifier.close();
+            }
+            throw e;
+        }
+        return new ClassifierPool(classifiers);
+    }
+
+    public int size() {
+        return classifiers.size();
+    }
+
+    /**
+     * Waits for an idle context. Must be paired with {@link #release(ImageClassifier)}.
+     */
+    public ImageClassifier acquire() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return idle.take();
+                } catch (InterruptedException e) {
+                    // Inference is short; finish it and let the caller see the interrupt.
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void release(ImageClassifier classifier) {
+        idle.add(classifier);
+    }
+
+    /**
+     * Returns every context, for reading per-context stats. Do not run inference on them.
+     */
+    List<ImageClassifier> getClassifiers() {
+        return classifiers;
+    }
+
+    /**
+     * Frees every context. Must only be called once no context is acquired.
+     */
+    public void close() {
+        for (ImageClassifier classifier : classifiers) {
+            classifier.close();
+        }
+    }
+}
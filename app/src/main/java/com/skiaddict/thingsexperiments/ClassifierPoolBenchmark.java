@@ -0,0 +1,107 @@
+package com.skiaddict.thingsexperiments;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures frames/sec and per-frame latency of a {@link ClassifierPool} of the current model
+ * for each pool size from 1 to N. Each run keeps exactly {@code poolSize} frames in flight,
+ * which is the load a pool of that size is meant to absorb.
+ */
+
+public class ClassifierPoolBenchmark {
+    private static final String TAG = ClassifierPoolBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_FRAMES = 2;
+
+    public static class Point {
+        Point(int poolSize, float framesPerSecond, float p50LatencyMillis, float p95LatencyMillis) {
+            this.poolSize = poolSize;
+            this.framesPerSecond = framesPerSecond;
+            this.p50LatencyMillis = p50LatencyMillis;
+            this.p95LatencyMillis = p95LatencyMillis;
+        }
+
+        public final int poolSize;
+        public final float framesPerSecond;
+        public final float p50LatencyMillis;
+        public final float p95LatencyMillis;
+    }
+
+    /**
+     * Runs {@code framesPerRun} classifications of {@code frame} for every pool size up to
+     * {@code maxPoolSize}. Blocks the calling thread; do not call from the UI thread.
+     */
+    public static List<Point> run(ModelManager modelManager, Bitmap frame, int maxPoolSize, int framesPerRun)
+            throws InterruptedException {
+        ArrayList<Point> curve = new ArrayList<>();
+        for (int poolSize = 1; poolSize <= maxPoolSize; ++poolSize) {
+            ClassifierPool pool;
+            try {
+                pool = modelManager.createPool(poolSize);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Benchmark failed for pool size " + poolSize, e);
+                continue;
+            }
+            try {
+                for (ImageClassifier classifier : pool.getClassifiers()) {
+                    for (int i = 0; i < WARMUP_FRAMES; ++i) {
+                        classifier.doRecognize(frame);
+                    }
+                }
+                Point point = measure(pool, frame, framesPerRun);
+                Log.i(TAG, "pool=" + point.poolSize + " fps=" + point.framesPerSecond +
+                        " p50=" + point.p50LatencyMillis + "ms p95=" + point.p95LatencyMillis + "ms");
+                curve.add(point);
+            } finally {
+                pool.close();
+            }
+        }
+        return curve;
+    }
+
+    private static Point measure(final ClassifierPool pool, final Bitmap frame, int framesPerRun)
+            throws InterruptedException {
+        final long[] latencies = new long[framesPerRun];
+        final AtomicInteger next = new AtomicInteger();
+
+        Thread[] clients = new Thread[pool.size()];
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < clients.length; ++i) {
+            clients[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < latencies.length) {
+                        long submitted = SystemClock.elapsedRealtimeNanos();
+                        ImageClassifier classifier = pool.acquire();
+                        try {
+                            classifier.doRecognize(frame);
+                        } finally {
+                            pool.release(classifier);
+                        }
+                        latencies[index] = SystemClock.elapsedRealtimeNanos() - submitted;
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        Arrays.sort(latencies);
+        return new Point(pool.size(),
+                framesPerRun * 1e9f / elapsed,
+                latencies[latencies.length / 2] / 1e6f,
+                latencies[(int) (latencies.length * 0.95)] / 1e6f);
+    }
+}
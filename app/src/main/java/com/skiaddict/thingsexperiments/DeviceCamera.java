@@ -36,12 +36,26 @@ public class DeviceCamera {
     public static final int IMAGE_WIDTH = 640;
     public static final int IMAGE_HEIGHT = 480;
     public static final int MAX_IMAGES = 1;
+    public static final int MAX_CONTINUOUS_IMAGES = 2;
+
+    public interface OnCameraOpenListener {
+        void onCameraOpened();
+        void onCameraOpenFailed(String reason);
+    }
 
     private static DeviceCamera deviceCameraInstance = null;
 
     private ImageReader imageReader;
     private CameraDevice cameraDevice;
     private CameraCaptureSession cameraCaptureSession;
+    private OnCameraOpenListener openListener;
+
+    // Low-rate continuous capture, used for pre-roll. Set on the camera handler; cleared from
+    // any thread on shutdown.
+    private volatile boolean continuous;
+    private long continuousIntervalMs;
+    private Handler continuousHandler;
+    private ImageReader.OnImageAvailableListener continuousListener;
 
     public static DeviceCamera getInstance() {
         if (null == deviceCameraInstance) {
@@ -50,12 +64,19 @@ public class DeviceCamera {
         return deviceCameraInstance;
     }
 
+    /**
+     * Opens the camera asynchronously. The listener hears once, on the camera handler, whether
+     * it opened; it may also hear straight away from this call if it cannot be opened at all.
+     */
     public void initializeCamera(Context context,
-                                 Handler cameraHandler) {
+                                 Handler cameraHandler,
+                                 OnCameraOpenListener listener) {
+        openListener = listener;
 
         if (context.checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
             // No permissions.
             Log.d(TAG, "Camera Permissions not granted.  This must be first run.  Reboot the device.");
+            notifyOpenFailed("Camera permission not granted");
             return;
         }
 
@@ -71,6 +92,7 @@ public class DeviceCamera {
 
         if (cameraIds.length < 1) {
             Log.d(TAG, "No Cameras returned.");
+            notifyOpenFailed("No cameras");
             return;
         }
 
@@ -79,6 +101,15 @@ public class DeviceCamera {
             cameraManager.openCamera(cameraIds[0], stateCallback, cameraHandler);
         } catch (CameraAccessException e) {
             Log.d(TAG, "openCamera failed: " + e.getLocalizedMessage());
+            notifyOpenFailed("openCamera failed: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void notifyOpenFailed(String reason) {
+        OnCameraOpenListener listener = openListener;
+        openListener = null;
+        if (null != listener) {
+            listener.onCameraOpenFailed(reason);
         }
     }
 
@@ -104,7 +135,65 @@ public class DeviceCamera {
         }
     }
 
+    /**
+     * Captures a still every {@code intervalMs} until {@link #stopContinuousCapture()}, keeping
+     * one capture session open. Starts as soon as the camera is open if it is not yet.
+     *
+     * Runs on the camera handler, the thread the camera state callbacks use, so it cannot race
+     * with the camera opening.
+     */
+    public void startContinuousCapture(final Handler cameraHandler,
+                                       final ImageReader.OnImageAvailableListener imageAvailableListener,
+                                       final long intervalMs) {
+        cameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                continuous = true;
+                continuousIntervalMs = intervalMs;
+                continuousHandler = cameraHandler;
+                continuousListener = imageAvailableListener;
+
+                if (cameraDevice != null) {
+                    openContinuousSession();
+                }
+            }
+        });
+    }
+
+    public void stopContinuousCapture() {
+        continuous = false;
+        if (null != continuousHandler) {
+            continuousHandler.removeCallbacks(continuousCaptureRunnable);
+        }
+        closeCaptureSession();
+    }
+
+    private void openContinuousSession() {
+        if (null != imageReader) {
+            imageReader.close();
+        }
+        imageReader = ImageReader.newInstance(IMAGE_WIDTH, IMAGE_HEIGHT, ImageFormat.JPEG, MAX_CONTINUOUS_IMAGES);
+        imageReader.setOnImageAvailableListener(continuousListener, continuousHandler);
+
+        try {
+            List outputs = Collections.singletonList(imageReader.getSurface());
+            cameraDevice.createCaptureSession(outputs, sessionCallback, null);
+        } catch (CameraAccessException e) {
+            Log.d(TAG, "createCaptureSession failed: " + e.getLocalizedMessage());
+        }
+    }
+
+    private final Runnable continuousCaptureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (continuous && null != cameraCaptureSession) {
+                captureImage();
+            }
+        }
+    };
+
     public void shutDown() {
+        continuous = false;
         closeCaptureSession();
         if (cameraDevice != null) {
             cameraDevice.close();
@@ -141,18 +230,28 @@ public class DeviceCamera {
         public void onOpened(@NonNull CameraDevice device) {
             Log.d(TAG, "CameraDevice.StateCallback:onOpened");
             cameraDevice = device;
+            if (continuous) {
+                openContinuousSession();
+            }
+            OnCameraOpenListener listener = openListener;
+            openListener = null;
+            if (null != listener) {
+                listener.onCameraOpened();
+            }
         }
         @Override
         public void onDisconnected(@NonNull CameraDevice device) {
             Log.d(TAG, "CameraDevice.StateCallback:onDisconnected");
             closeCaptureSession();
-            cameraDevice.close();
+            device.close();
+            notifyOpenFailed("Camera disconnected");
         }
         @Override
         public void onError(@NonNull CameraDevice device, int i) {
             Log.d(TAG, "CameraDevice.StateCallback:onError");
             closeCaptureSession();
-            cameraDevice.close();
+            device.close();
+            notifyOpenFailed("Camera error " + i);
         }
         @Override
         public void onClosed(@NonNull CameraDevice device) {
@@ -195,6 +294,10 @@ public class DeviceCamera {
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
             Log.d(TAG, "CameraCaptureSession.CaptureCallback:onCaptureCompleted");
+            if (continuous) {
+                continuousHandler.postDelayed(continuousCaptureRunnable, continuousIntervalMs);
+                return;
+            }
             session.close();
             cameraCaptureSession = null;
             Log.d(TAG, "CaptureSession closed");
@@ -6,20 +6,30 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.media.ThumbnailUtils;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+
 import junit.framework.Assert;
 
+import org.tensorflow.Shape;
 import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.BufferOverflowException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * Created by jewatts on 8/22/17.
@@ -29,7 +39,7 @@ public class ImageClassifier {
 
     private static final String TAG = ImageClassifier.class.getSimpleName();
 
-    private static final String MODEL_FILE = "file:///android_asset/tensorflow_inception_graph.pb";
+    public static final String MODEL_FILE = "file:///android_asset/tensorflow_inception_graph.pb";
     private static final String LABELS_FILE = "imagenet_comp_graph_label_strings.txt";
     public static final int IMAGE_SIZE = 224;
     private static final int IMAGE_MEAN = 117;
@@ -41,6 +51,8 @@ public class ImageClassifier {
     public static final String OUTPUT_NAME = OUTPUT_OPERATION + ":0";
     public static final String[] OUTPUT_NAMES = {OUTPUT_NAME};
     public static final long[] NETWORK_STRUCTURE = {1, IMAGE_SIZE, IMAGE_SIZE, 3};
+    // Floats in one preprocessed input image.
+    public static final int INPUT_SIZE = IMAGE_SIZE * IMAGE_SIZE * 3;
     private static final int MAX_BEST_RESULTS = 3;
     private static final float RESULT_CONFIDENCE_THRESHOLD = 0.1f;
 
@@ -50,21 +62,240 @@ public class ImageClassifier {
     private float[] outputs;
     private TensorFlowInferenceInterface tensorFlowInferenceInterface;
 
-    public ImageClassifier(Context context) {
-        tensorFlowInferenceInterface = new TensorFlowInferenceInterface(context.getAssets(), MODEL_FILE);
-
-        labels = readLabels(context);
+    // Optional first tier of a cascade; see enableCascade.
+    private Cascade cascade;
+    private String[] fastLabels;
+    // Fast label id to the full model's label id for the same label, or -1.
+    private int[] fastToFullLabel;
+    private float[] fastOutputs;
+    private TensorFlowInferenceInterface fastInferenceInterface;
+    private final CascadeStats cascadeStats = new CascadeStats();
+    // Set once the graph turns out to take only a single image per run.
+    private boolean batchUnsupported;
+
+    /**
+     * Loads a graph either from the APK assets (file:///android_asset/ prefix) or from an
+     * absolute path on local storage. The number of classes is the graph's output width.
+     */
+    public ImageClassifier(AssetManager assetManager, String modelFile, String[] labels) {
+        tensorFlowInferenceInterface = new TensorFlowInferenceInterface(assetManager, modelFile);
+
+        this.labels = labels;
 
         intValues = new int[IMAGE_SIZE * IMAGE_SIZE];
-        floatValues = new float[IMAGE_SIZE * IMAGE_SIZE * 3];
-        outputs = new float[NUM_CLASSES];
+        floatValues = new float[INPUT_SIZE];
+        outputs = new float[outputWidth(tensorFlowInferenceInterface, labels)];
+    }
+
+    /**
+     * Classes the graph scores per image, read from its output shape. A graph may have more
+     * outputs than labels (inception5h pads its 1001 labels to 1008); if the shape is not
+     * fixed, the label count is used.
+     */
+    private static int outputWidth(TensorFlowInferenceInterface inferenceInterface, String[] labels) {
+        Shape shape = inferenceInterface.graphOperation(OUTPUT_OPERATION).output(0).shape();
+        if (shape.numDimensions() == 2 && shape.size(1) > 0) {
+            return (int) shape.size(1);
+        }
+        return labels.length;
+    }
+
+    public int getNumClasses() {
+        return outputs.length;
     }
 
-    public List<ClassificationResult> doRecognize(Bitmap image) {
+    /**
+     * Puts a small, fast graph in front of this one. Each frame is classified by the fast graph
+     * first and only escalated to this graph if the fast result is not confident enough or its
+     * top label is on the watch list. The fast graph is fed the same preprocessed buffer, so it
+     * must take the same input size, mean and node names as this one. Fast results are reported
+     * with this graph's label ids; a fast label this graph does not know is always escalated.
+     */
+    public void enableCascade(AssetManager assetManager, Cascade cascade) throws IOException {
+        fastLabels = readLabels(cascade.getLabelsFile());
+        HashMap<String, Integer> fullLabelIds = new HashMap<>();
+        for (int i = 0; i < labels.length; ++i) {
+            fullLabelIds.put(labels[i], i);
+        }
+        fastToFullLabel = new int[fastLabels.length];
+        for (int i = 0; i < fastLabels.length; ++i) {
+            Integer fullId = fullLabelIds.get(fastLabels[i]);
+            fastToFullLabel[i] = (null == fullId) ? -1 : fullId;
+        }
+        fastInferenceInterface = new TensorFlowInferenceInterface(assetManager, cascade.getModelFile().getAbsolutePath());
+        fastOutputs = new float[outputWidth(fastInferenceInterface, fastLabels)];
+        this.cascade = cascade;
+    }
+
+    public boolean isCascade() {
+        return null != cascade;
+    }
+
+    public void close() {
+        tensorFlowInferenceInterface.close();
+        if (null != fastInferenceInterface) {
+            fastInferenceInterface.close();
+        }
+    }
+
+    public synchronized List<ClassificationResult> doRecognize(Bitmap image) {
 
         // read pixels from image.
         float[] pixels = getPixels(image, intValues, floatValues);
+        return recognize(pixels);
+    }
 
+    /**
+     * Classifies with this graph alone, skipping a cascade's fast tier, so graphs can be timed
+     * like for like.
+     */
+    public synchronized List<ClassificationResult> doRecognizeFull(Bitmap image) {
+        float[] pixels = getPixels(image, intValues, floatValues);
+        return runFullModel(pixels);
+    }
+
+    /**
+     * Checks this graph's raw output for {@code image}, skipping a cascade's fast tier. The
+     * output must have exactly {@link #getNumClasses()} scores, at least one per label, and
+     * every score must be finite. Returns what is wrong, or null if nothing is.
+     */
+    public synchronized String validateOutputs(Bitmap image) {
+        if (outputs.length < labels.length) {
+            return "Graph scores " + outputs.length + " classes for " + labels.length + " labels";
+        }
+
+        float[] pixels = getPixels(image, intValues, floatValues);
+        tensorFlowInferenceInterface.feed(INPUT_NAME, pixels, NETWORK_STRUCTURE);
+        tensorFlowInferenceInterface.run(OUTPUT_NAMES);
+
+        // A spare slot catches an output one wider than expected, fetch throws if it is wider
+        // still, and scores left NaN show one that is narrower.
+        float[] scores = new float[outputs.length + 1];
+        Arrays.fill(scores, Float.NaN);
+        try {
+            tensorFlowInferenceInterface.fetch(OUTPUT_NAME, scores);
+        } catch (BufferOverflowException e) {
+            return "Output is wider than " + outputs.length + " classes";
+        }
+        if (!Float.isNaN(scores[outputs.length])) {
+            return "Output is wider than " + outputs.length + " classes";
+        }
+        for (int i = 0; i < outputs.length; ++i) {
+            if (Float.isNaN(scores[i]) || Float.isInfinite(scores[i])) {
+                return "Score " + i + " of " + outputs.length + " is missing or not finite: " + scores[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Classifies an image that was already preprocessed, for example by {@link #preprocess(Bitmap)}
+     * on another device.
+     */
+    public synchronized List<ClassificationResult> doRecognize(float[] input) {
+        if (input.length != INPUT_SIZE) {
+            throw new IllegalArgumentException("Expected " + INPUT_SIZE + " floats, got " + input.length);
+        }
+        return recognize(input);
+    }
+
+    /**
+     * Classifies several preprocessed images in one run of the graph. Falls back to one run per
+     * image if the graph has a fixed batch size of one, or in cascade mode.
+     */
+    public synchronized List<List<ClassificationResult>> doRecognizeBatch(List<float[]> inputs) {
+        ArrayList<List<ClassificationResult>> results = new ArrayList<>(inputs.size());
+        for (float[] input : inputs) {
+            if (input.length != INPUT_SIZE) {
+                throw new IllegalArgumentException("Expected " + INPUT_SIZE + " floats, got " + input.length);
+            }
+        }
+
+        if (inputs.size() > 1 && null == cascade && !batchUnsupported) {
+            int batchSize = inputs.size();
+            float[] batch = new float[batchSize * INPUT_SIZE];
+            for (int i = 0; i < batchSize; ++i) {
+                System.arraycopy(inputs.get(i), 0, batch, i * INPUT_SIZE, INPUT_SIZE);
+            }
+            float[] batchOutputs = new float[batchSize * outputs.length];
+            try {
+                tensorFlowInferenceInterface.feed(INPUT_NAME, batch, batchSize, IMAGE_SIZE, IMAGE_SIZE, 3);
+                tensorFlowInferenceInterface.run(OUTPUT_NAMES);
+                tensorFlowInferenceInterface.fetch(OUTPUT_NAME, batchOutputs);
+                for (int i = 0; i < batchSize; ++i) {
+                    results.add(orderResults(batchOutputs, i * outputs.length, outputs.length, labels));
+                }
+                return results;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Graph does not take batches, classifying one image at a time", e);
+                batchUnsupported = true;
+                results.clear();
+            }
+        }
+
+        for (float[] input : inputs) {
+            results.add(recognize(input));
+        }
+        return results;
+    }
+
+    /**
+     * Scales and normalizes an image into a new input tensor.
+     */
+    public static float[] preprocess(Bitmap image) {
+        return getPixels(image, new int[IMAGE_SIZE * IMAGE_SIZE], new float[INPUT_SIZE]);
+    }
+
+    private List<ClassificationResult> recognize(float[] pixels) {
+        if (null == cascade) {
+            return runFullModel(pixels);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        fastInferenceInterface.feed(INPUT_NAME, pixels, NETWORK_STRUCTURE);
+        fastInferenceInterface.run(OUTPUT_NAMES);
+        fastInferenceInterface.fetch(OUTPUT_NAME, fastOutputs);
+        List<ClassificationResult> results = orderResults(fastOutputs, fastLabels);
+        long fastDone = SystemClock.elapsedRealtimeNanos();
+
+        if (!shouldEscalate(results)) {
+            cascadeStats.record(fastDone - start, 0, false);
+            return toFullLabels(results);
+        }
+
+        results = runFullModel(pixels);
+        cascadeStats.record(fastDone - start, SystemClock.elapsedRealtimeNanos() - fastDone, true);
+        return results;
+    }
+
+    /**
+     * Returns a snapshot of the cascade counters.
+     */
+    public CascadeStats getCascadeStats() {
+        return cascadeStats.snapshot();
+    }
+
+    private boolean shouldEscalate(List<ClassificationResult> results) {
+        if (results.isEmpty()) {
+            return true;
+        }
+        ClassificationResult top = results.get(0);
+        return top.confidence < cascade.getEscalationThreshold() || cascade.getWatchList().contains(top.label) ||
+                fastToFullLabel[top.labelId] < 0;
+    }
+
+    private List<ClassificationResult> toFullLabels(List<ClassificationResult> results) {
+        ArrayList<ClassificationResult> mapped = new ArrayList<>(results.size());
+        for (ClassificationResult result : results) {
+            int fullId = fastToFullLabel[result.labelId];
+            if (fullId >= 0) {
+                mapped.add(new ClassificationResult(fullId, result.label, result.confidence));
+            }
+        }
+        return mapped;
+    }
+
+    private List<ClassificationResult> runFullModel(float[] pixels) {
         // Feed the pixels of the image into the TensorFlow Neural Network
         tensorFlowInferenceInterface.feed(INPUT_NAME, pixels, NETWORK_STRUCTURE);
 
@@ -78,7 +309,7 @@ public class ImageClassifier {
         return orderResults(outputs, labels);
     }
 
-    public Bitmap cropAndRescaleBitmap(final Bitmap src) {
+    public static Bitmap cropAndRescaleBitmap(final Bitmap src) {
         Bitmap dst = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
 
         Assert.assertEquals(dst.getWidth(), dst.getHeight());
@@ -100,21 +331,31 @@ public class ImageClassifier {
         return dst;
     }
 
-    private static String[] readLabels(Context context) {
+    public static String[] readLabels(Context context) {
         AssetManager assetManager = context.getAssets();
-        ArrayList<String> result = new ArrayList<>();
-        try (InputStream is = assetManager.open(LABELS_FILE);
-             BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                result.add(line);
-            }
-            return result.toArray(new String[result.size()]);
+        try (InputStream is = assetManager.open(LABELS_FILE)) {
+            return readLabels(is);
         } catch (IOException ex) {
             throw new IllegalStateException("Cannot read labels from " + LABELS_FILE);
         }
     }
 
+    public static String[] readLabels(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return readLabels(is);
+        }
+    }
+
+    private static String[] readLabels(InputStream is) throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(is));
+        String line;
+        while ((line = br.readLine()) != null) {
+            result.add(line);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
     private static float[] getPixels(Bitmap bitmap, int[] intValues, float[] floatValues) {
         if (bitmap.getWidth() != IMAGE_SIZE || bitmap.getHeight() != IMAGE_SIZE) {
             // rescale the bitmap if needed
@@ -136,6 +377,11 @@ public class ImageClassifier {
 
 
     private static List<ClassificationResult> orderResults (float[] confidenceLevels, String[] labels) {
+        return orderResults(confidenceLevels, 0, confidenceLevels.length, labels);
+    }
+
+    private static List<ClassificationResult> orderResults (float[] confidenceLevels, int offset, int count,
+                                                            String[] labels) {
         PriorityQueue<ClassificationResult> pq = new PriorityQueue<>(MAX_BEST_RESULTS,
                 new Comparator<ClassificationResult>() {
                     @Override
@@ -145,9 +391,11 @@ public class ImageClassifier {
                     }
                 });
 
-        for (int ix = 0; ix < confidenceLevels.length; ++ix) {
-            if (confidenceLevels[ix] > RESULT_CONFIDENCE_THRESHOLD) {
-                pq.add(new ClassificationResult(labels[ix], confidenceLevels[ix]));
+        // A graph may score more classes than it has labels; those have no id to report.
+        int labelled = Math.min(count, labels.length);
+        for (int ix = 0; ix < labelled; ++ix) {
+            if (confidenceLevels[offset + ix] > RESULT_CONFIDENCE_THRESHOLD) {
+                pq.add(new ClassificationResult(ix, labels[ix], confidenceLevels[offset + ix]));
             }
         }
 
@@ -160,13 +408,109 @@ public class ImageClassifier {
     }
 
 
-    public static class ClassificationResult {
-        ClassificationResult (String label, float confidence) {
-            this.label = label;
-            this.confidence = confidence;
+    /**
+     * Configuration for the fast first tier of a cascade. Its class count is read from the
+     * graph, like the full model's.
+     */
+    public static class Cascade {
+        public Cascade(File modelFile, File labelsFile, float escalationThreshold, Set<String> watchList) {
+            this.modelFile = modelFile;
+            this.labelsFile = labelsFile;
+            this.escalationThreshold = escalationThreshold;
+            this.watchList = watchList;
+        }
+
+        private final File modelFile;
+        private final File labelsFile;
+        // Fast results below this confidence go to the full model.
+        private final float escalationThreshold;
+        // Fast results with one of these top labels always go to the full model.
+        private final Set<String> watchList;
+
+        public File getModelFile() {
+            return modelFile;
+        }
+
+        public File getLabelsFile() {
+            return labelsFile;
+        }
+
+        public float getEscalationThreshold() {
+            return escalationThreshold;
+        }
+
+        public Set<String> getWatchList() {
+            return watchList;
+        }
+    }
+
+    public static class CascadeStats {
+        private long frames;
+        private long escalations;
+        private long fastNanos;
+        private long fullNanos;
+
+        synchronized void record(long fast, long full, boolean escalated) {
+            frames++;
+            fastNanos += fast;
+            if (escalated) {
+                escalations++;
+                fullNanos += full;
+            }
+        }
+
+        synchronized void add(CascadeStats other) {
+            frames += other.frames;
+            escalations += other.escalations;
+            fastNanos += other.fastNanos;
+            fullNanos += other.fullNanos;
+        }
+
+        synchronized CascadeStats snapshot() {
+            CascadeStats copy = new CascadeStats();
+            copy.frames = frames;
+            copy.escalations = escalations;
+            copy.fastNanos = fastNanos;
+            copy.fullNanos = fullNanos;
+            return copy;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getEscalations() {
+            return escalations;
+        }
+
+        public float getEscalationRate() {
+            return (frames == 0) ? 0 : (float) escalations / frames;
+        }
+
+        public float getMeanFastMillis() {
+            return (frames == 0) ? 0 : fastNanos / 1e6f / frames;
         }
 
-        public String label;
-        public float confidence;
+        public float getMeanFullMillis() {
+            return (escalations == 0) ? 0 : fullNanos / 1e6f / escalations;
+        }
+
+        /**
+         * Fraction of the time running the full model on every frame would have taken that the
+         * cascade saved, estimated from the full model's latency on escalated frames.
+         */
+        public float getSavings() {
+            float fullOnly = getMeanFullMillis() * frames;
+            if (fullOnly == 0) {
+                return 0;
+            }
+            return 1 - (fastNanos + fullNanos) / 1e6f / fullOnly;
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + frames + " escalated=" + (getEscalationRate() * 100) + "% fast=" +
+                    getMeanFastMillis() + "ms full=" + getMeanFullMillis() + "ms saved=" + (getSavings() * 100) + "%";
+        }
     }
 }
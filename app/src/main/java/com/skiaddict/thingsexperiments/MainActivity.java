@@ -17,6 +17,7 @@ import android.media.ImageReader;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.text.TextUtils;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -26,11 +27,46 @@ import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.gps.NmeaGpsDriver;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManagerService;
+import com.google.firebase.database.FirebaseDatabase;
+import com.skiaddict.thingsexperiments.detection.DetectionEvent;
+import com.skiaddict.thingsexperiments.detection.DetectionJournal;
+import com.skiaddict.thingsexperiments.detection.DetectionSpatialIndex;
+import com.skiaddict.thingsexperiments.detection.LabelIndex;
+import com.skiaddict.thingsexperiments.events.Event;
+import com.skiaddict.thingsexperiments.events.EventBus;
+import com.skiaddict.thingsexperiments.events.EventConsumer;
 import com.skiaddict.thingsexperiments.hardware.MotionDetector;
-
+import com.skiaddict.thingsexperiments.pipeline.BusyIndicator;
+import com.skiaddict.thingsexperiments.pipeline.CapturePipeline;
+import com.skiaddict.thingsexperiments.pipeline.CaptureScheduler;
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+import com.skiaddict.thingsexperiments.pipeline.FrameClassifier;
+import com.skiaddict.thingsexperiments.pipeline.FrameRing;
+import com.skiaddict.thingsexperiments.pipeline.FrameSource;
+import com.skiaddict.thingsexperiments.pipeline.PipelineInput;
+import com.skiaddict.thingsexperiments.replay.ReplayRecorder;
+import com.skiaddict.thingsexperiments.server.InferenceBackend;
+import com.skiaddict.thingsexperiments.server.InferenceLoadGenerator;
+import com.skiaddict.thingsexperiments.server.InferenceProtocol;
+import com.skiaddict.thingsexperiments.server.InferenceServer;
+import com.skiaddict.thingsexperiments.startup.StartupOrchestrator;
+import com.skiaddict.thingsexperiments.telemetry.FirebaseTelemetryRemote;
+import com.skiaddict.thingsexperiments.telemetry.TelemetrySync;
+
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 
 public class MainActivity extends Activity {
@@ -53,6 +89,104 @@ public class MainActivity extends Activity {
     // "Busy" LED Pin.
     private static final String BUSY_LED_PIN = "BCM16";
 
+    // For geotagged detection history.
+    private static final String DETECTION_JOURNAL_FILE = "detections.bin";
+    private static final long DETECTION_JOURNAL_SEGMENT_BYTES = 1024 * 1024;
+    private static final double DETECTION_CELL_METERS = 100.0;
+    private static final long DETECTION_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int DETECTION_MAX_ENTRIES = 50000;
+    private static final String LABEL_INDEX_FILE = "label_index.bin";
+    private static final int LABEL_INDEX_SAVE_INTERVAL = 100;
+
+    // For hot model swap. A new graph and labels dropped here replace the bundled model.
+    private static final String MODEL_DIR = "model";
+    private static final String MODEL_GRAPH_FILE = "graph.pb";
+    private static final String MODEL_LABELS_FILE = "labels.txt";
+    private static final long MODEL_CHECK_INTERVAL_MS = 60 * 1000;
+
+    // For the classifier cascade. A small graph and labels dropped here are run first, and only frames it is
+    // unsure of, or whose top label is on the watch list, go to the full model.
+    private static final String CASCADE_GRAPH_FILE = "fast_graph.pb";
+    private static final String CASCADE_LABELS_FILE = "fast_labels.txt";
+    private static final float CASCADE_ESCALATION_THRESHOLD = 0.6f;
+    private static final String[] CASCADE_WATCH_LIST = {};
+
+    // Contexts per model. Each holds its own copy of the graph, so capture alone gets one. With
+    // the inference server enabled there are two, so a capture never waits behind a server batch.
+    private static final int CLASSIFIER_POOL_SIZE = 1;
+    private static final int SERVER_CLASSIFIER_POOL_SIZE = 2;
+
+    // Set to log throughput/latency of classifier pools of 1..N contexts at startup.
+    private static final boolean BENCHMARK_CLASSIFIER_POOL = false;
+    private static final int CLASSIFIER_POOL_MAX_SIZE = 4;
+    private static final int CLASSIFIER_POOL_BENCHMARK_FRAMES = 40;
+
+    // Set to serve classification to other devices over TCP, batching requests across clients.
+    private static final boolean INFERENCE_SERVER_ENABLED = false;
+    private static final int INFERENCE_SERVER_PORT = 5050;
+    private static final int INFERENCE_BATCH_SIZE = 4;
+    private static final long INFERENCE_BATCH_WINDOW_MS = 20;
+    private static final int INFERENCE_CLIENT_QUOTA = 4;
+    private static final int INFERENCE_MAX_CLIENTS = 8;
+    // Set to log server throughput/latency with loopback clients once it is up.
+    private static final boolean BENCHMARK_INFERENCE_SERVER = false;
+    private static final int INFERENCE_BENCHMARK_CLIENTS = 4;
+    private static final int INFERENCE_BENCHMARK_REQUESTS = 25;
+
+    // Set to record motion, frames, sensor readings and GPS for offline replay.
+    private static final boolean RECORD_REPLAY = false;
+    private static final String REPLAY_FILE = "capture.rpl";
+
+    // For the event bus between sensors/classifier and the UI and journaling consumers.
+    private static final int EVENT_BUS_SIZE = 1024;
+    private static final long UI_EVENT_POLL_MS = 50;
+    private static final int UI_EVENT_BATCH = 32;
+    private static final long EVENT_STATS_INTERVAL_MS = 5 * 60 * 1000;
+
+    // For telemetry sync. Readings are sent in batches, and only when they moved by more than their epsilon.
+    private static final boolean TELEMETRY_SYNC_ENABLED = false;
+    private static final String TELEMETRY_PATH = "telemetry";
+    private static final long TELEMETRY_BATCH_INTERVAL_MS = 30 * 1000;
+    private static final String TELEMETRY_TEMPERATURE = "temperature";
+    private static final String TELEMETRY_PRESSURE = "pressure";
+    private static final String TELEMETRY_LATITUDE = "location/latitude";
+    private static final String TELEMETRY_LONGITUDE = "location/longitude";
+    private static final double TELEMETRY_TEMPERATURE_EPSILON = 0.5;
+    private static final double TELEMETRY_PRESSURE_EPSILON = 0.5;
+    // Roughly 5m.
+    private static final double TELEMETRY_LOCATION_EPSILON = 0.00005;
+
+    // For startup. The device is ready once camera, motion detector and classifier are up.
+    private static final String TASK_BUSY_LED = "busyLed";
+    private static final String TASK_BMX280 = "bmx280";
+    private static final String TASK_GPS = "gps";
+    private static final String TASK_LOCATION = "location";
+    private static final String TASK_MOTION = "motion";
+    private static final String TASK_CAMERA = "camera";
+    private static final String TASK_BUTTON = "button";
+    private static final String TASK_CLASSIFIER = "classifier";
+    private static final String TASK_DETECTION_HISTORY = "detectionHistory";
+    private static final int STARTUP_WORKER_THREADS = 4;
+    private static final long PERIPHERAL_INIT_TIMEOUT_MS = 5 * 1000;
+    private static final long CLASSIFIER_INIT_TIMEOUT_MS = 30 * 1000;
+    private static final long HISTORY_INIT_TIMEOUT_MS = 60 * 1000;
+    private static final String STARTUP_TIMES_FILE = "startup_times.csv";
+
+    // Set to stream low-rate frames into a pre-roll ring so frames from before the trigger are classified too.
+    private static final boolean PRE_ROLL_ENABLED = false;
+    private static final long PRE_ROLL_INTERVAL_MS = 500;
+    private static final long PRE_ROLL_WINDOW_MS = 4 * 1000;
+    private static final int PRE_ROLL_MEMORY_BUDGET_BYTES = 2 * 1024 * 1024;
+    private static final int PRE_ROLL_SLOT_BYTES = 128 * 1024;
+    private static final int POST_TRIGGER_FRAMES = 4;
+    private static final float PRE_ROLL_EARLY_EXIT_CONFIDENCE = 0.8f;
+
+    // For capture scheduling. Button presses go first, then motion, then periodic snapshots.
+    private static final long PERIODIC_SNAPSHOT_INTERVAL_MS = 15 * 60 * 1000;
+    private static final long MANUAL_CAPTURE_DEADLINE_MS = 2 * 1000;
+    private static final long MOTION_CAPTURE_DEADLINE_MS = 5 * 1000;
+    private static final long PERIODIC_CAPTURE_DEADLINE_MS = 60 * 1000;
+
     private SensorManager sensorManager;
     private LocationManager locationManager;
     private DynamicSensorCallback dynamicSensorCallback;
@@ -64,16 +198,9 @@ public class MainActivity extends Activity {
     private PressureSensorEventListener pressureSensorEventListener;
     private MotionDetectorEventListener motionDetectorEventListener;
 
-    private double temperature;
     private TextView temperatureView;
-
-    private double pressure;
     private TextView pressureView;
-
-    private double latitude;
     private TextView latitudeView;
-
-    private double longitude;
     private TextView longitudeView;
 
     private TextView result1View;
@@ -87,15 +214,40 @@ public class MainActivity extends Activity {
     private MotionDetector motionDetector;
     private TextView statusView;
 
-    boolean motionDetectionActive;
-    private Gpio gpioBusyLed;
+    private volatile Gpio gpioBusyLed;
+    private volatile boolean busy = true;
+
+    private CapturePipeline capturePipeline;
+    private PipelineInput pipelineInput;
+    private ReplayRecorder replayRecorder;
+    // Reused for every camera frame; only touched on the background thread.
+    private byte[] frameBuffer = new byte[0];
+
+    private EventBus eventBus;
+    private EventConsumer uiEventConsumer;
+    private JournalEventHandler journalEventHandler;
+    private EventConsumer journalEventConsumer;
+    private EventConsumer uploadEventConsumer;
+    private TelemetrySync telemetrySync;
+    private Handler uiHandler;
+
+    private StartupOrchestrator startupOrchestrator;
 
     private GpsLocationListener gpsLocationListener;
 
     private HandlerThread backgroundThread;
     private Handler backgroundHandler;
 
-    private ImageClassifier imageClassifier;
+    private HandlerThread modelThread;
+    private Handler modelHandler;
+    private ModelManager modelManager;
+    private long loadedModelTimestamp;
+    private InferenceServer inferenceServer;
+    private volatile Bitmap lastFrame;
+
+    private DetectionJournal detectionJournal;
+    private DetectionSpatialIndex detectionSpatialIndex;
+    private LabelIndex labelIndex;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -113,18 +265,61 @@ public class MainActivity extends Activity {
         result2View = (TextView)findViewById(R.id.result2);
         result3View = (TextView)findViewById(R.id.result3);
 
-        motionDetectionActive = false;
         statusView.setText("Initializing");
 
-        // Set up "busy" LED
-        PeripheralManagerService service = new PeripheralManagerService();
-        try {
-            gpioBusyLed = service.openGpio(BUSY_LED_PIN);
-            gpioBusyLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
-        } catch (IOException e) {
-            Log.d(TAG, "Unable to initialize output pin: " + e.getLocalizedMessage());
+        // Set up the event bus. The UI drains it from the main looper; journaling gets its own thread.
+        eventBus = new EventBus(EVENT_BUS_SIZE);
+        uiEventConsumer = new EventConsumer(eventBus, "ui", new UiEventHandler());
+        journalEventHandler = new JournalEventHandler();
+        journalEventConsumer = new EventConsumer(eventBus, "journal", journalEventHandler);
+        uiHandler = new Handler();
+        uiHandler.post(uiEventPollRunnable);
+
+        // Set up telemetry sync, fed by its own consumer on the event bus.
+        if (TELEMETRY_SYNC_ENABLED) {
+            telemetrySync = new TelemetrySync(
+                    new FirebaseTelemetryRemote(FirebaseDatabase.getInstance().getReference(TELEMETRY_PATH)),
+                    TELEMETRY_BATCH_INTERVAL_MS);
+            telemetrySync.setEpsilon(TELEMETRY_TEMPERATURE, TELEMETRY_TEMPERATURE_EPSILON);
+            telemetrySync.setEpsilon(TELEMETRY_PRESSURE, TELEMETRY_PRESSURE_EPSILON);
+            telemetrySync.setEpsilon(TELEMETRY_LATITUDE, TELEMETRY_LOCATION_EPSILON);
+            telemetrySync.setEpsilon(TELEMETRY_LONGITUDE, TELEMETRY_LOCATION_EPSILON);
+            telemetrySync.start();
+            uploadEventConsumer = new EventConsumer(eventBus, "upload", new UploadEventHandler());
+            uploadEventConsumer.start(EventConsumer.WaitStrategy.BLOCKING);
         }
 
+        // Set up the capture pipeline, optionally recording its inputs for replay.
+        capturePipeline = new CapturePipeline(cameraFrameSource, new ModelFrameClassifier(), busyLedIndicator,
+                new PipelineListener());
+        if (PRE_ROLL_ENABLED) {
+            capturePipeline.setPreRoll(
+                    new FrameRing(PRE_ROLL_MEMORY_BUDGET_BYTES, PRE_ROLL_SLOT_BYTES, PRE_ROLL_WINDOW_MS * 1000000),
+                    POST_TRIGGER_FRAMES, PRE_ROLL_EARLY_EXIT_CONFIDENCE);
+        }
+        capturePipeline.getScheduler().setDeadline(CaptureScheduler.Priority.MANUAL, MANUAL_CAPTURE_DEADLINE_MS);
+        capturePipeline.getScheduler().setDeadline(CaptureScheduler.Priority.MOTION, MOTION_CAPTURE_DEADLINE_MS);
+        capturePipeline.getScheduler().setDeadline(CaptureScheduler.Priority.PERIODIC, PERIODIC_CAPTURE_DEADLINE_MS);
+        pipelineInput = capturePipeline;
+        if (RECORD_REPLAY) {
+            try {
+                replayRecorder = new ReplayRecorder(new File(getFilesDir(), REPLAY_FILE), capturePipeline);
+                pipelineInput = replayRecorder;
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to start replay recording: " + e.getLocalizedMessage());
+            }
+        }
+
+        // Set up the threads used by the camera, GPS driver and model manager.
+        backgroundThread = new HandlerThread("Background Thread");
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+
+        // Model loading and swapping runs on its own thread so capture is never blocked.
+        modelThread = new HandlerThread("Model Thread");
+        modelThread.start();
+        modelHandler = new Handler(modelThread.getLooper());
+
         // Get instance of locatinManager
         locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
 
@@ -133,73 +328,188 @@ public class MainActivity extends Activity {
         dynamicSensorCallback = new DynamicSensorCallback();
         sensorManager.registerDynamicSensorCallback(dynamicSensorCallback);
 
+        deviceCamera = DeviceCamera.getInstance();
+
+        detectionJournal = new DetectionJournal(new File(getFilesDir(), DETECTION_JOURNAL_FILE),
+                DETECTION_JOURNAL_SEGMENT_BYTES);
+        detectionSpatialIndex = new DetectionSpatialIndex(DETECTION_CELL_METERS, DETECTION_MAX_AGE_MS, DETECTION_MAX_ENTRIES);
+        labelIndex = new LabelIndex(ImageClassifier.NUM_CLASSES);
+
+        // Journal from the start so early detections are not lapped in the ring while the
+        // history loads; the handler holds them back until it has.
+        journalEventConsumer.start(EventConsumer.WaitStrategy.BLOCKING);
+        backgroundHandler.postDelayed(eventStatsRunnable, EVENT_STATS_INTERVAL_MS);
+
+        // Bring up the peripherals and the classifier in parallel, off the main thread where possible.
+        startupOrchestrator = new StartupOrchestrator(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                uiHandler.post(runnable);
+            }
+        }, STARTUP_WORKER_THREADS, new StartupListener());
+        addStartupTasks(startupOrchestrator);
+        startupOrchestrator.setReadySet(TASK_CAMERA, TASK_MOTION, TASK_CLASSIFIER);
+        startupOrchestrator.start();
+    }
+
+    private void addStartupTasks(StartupOrchestrator orchestrator) {
+        // Set up "busy" LED
+        orchestrator.addTask(TASK_BUSY_LED, PERIPHERAL_INIT_TIMEOUT_MS, false, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException {
+                PeripheralManagerService service = new PeripheralManagerService();
+                Gpio gpio = service.openGpio(BUSY_LED_PIN);
+                gpio.setDirection(Gpio.DIRECTION_OUT_INITIALLY_HIGH);
+                gpio.setValue(busy);
+                gpioBusyLed = gpio;
+            }
+        });
+
         // Set up Temperator and Sensor Driver.
-        try {
-            bmx280SensorDriver = new Bmx280SensorDriver(I2C1_PIN);
-            bmx280SensorDriver.registerTemperatureSensor();
-            bmx280SensorDriver.registerPressureSensor();
-            Log.d(TAG, "Registered Bmx280SensorDriver");
-        } catch (IOException e) {
-            Log.d(TAG, "Unable to register Bmx280SensorDriver: " + e.getLocalizedMessage());
-        }
+        orchestrator.addTask(TASK_BMX280, PERIPHERAL_INIT_TIMEOUT_MS, false, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException {
+                bmx280SensorDriver = new Bmx280SensorDriver(I2C1_PIN);
+                bmx280SensorDriver.registerTemperatureSensor();
+                bmx280SensorDriver.registerPressureSensor();
+                Log.d(TAG, "Registered Bmx280SensorDriver");
+            }
+        });
 
         // Set up GPS Driver
-        try {
-            gpsDriver = new NmeaGpsDriver(this, UART_PIN, UART_BAUD, GPS_ACCURACY, backgroundHandler);
-            gpsDriver.register();
-            Log.d(TAG, "Regisetred NmeaGpsDriver");
-        } catch (IOException e) {
-            Log.d(TAG, "Unable to register NmeaGpsDriver: " + e.getLocalizedMessage());
-        }
+        orchestrator.addTask(TASK_GPS, PERIPHERAL_INIT_TIMEOUT_MS, false, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException {
+                gpsDriver = new NmeaGpsDriver(MainActivity.this, UART_PIN, UART_BAUD, GPS_ACCURACY, backgroundHandler);
+                gpsDriver.register();
+                Log.d(TAG, "Regisetred NmeaGpsDriver");
+            }
+        });
 
-        if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED ||
-                checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-            gpsLocationListener = new GpsLocationListener();
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 10, 10, gpsLocationListener);
-        }
+        // Location updates are delivered on the looper of the registering thread.
+        orchestrator.addTask(TASK_LOCATION, PERIPHERAL_INIT_TIMEOUT_MS, true, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() {
+                if (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED ||
+                        checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+                    gpsLocationListener = new GpsLocationListener();
+                    locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 10, 10, gpsLocationListener);
+                }
+            }
+        }, TASK_GPS);
 
         // Set up Motion Detector
-        try {
-            motionDetector = new MotionDetector(MOTION_DETECTOR_PIN);
-            motionDetectorEventListener = new MotionDetectorEventListener();
-            motionDetector.setOnMotionDetectedEventListener(motionDetectorEventListener);
-        } catch (IOException e) {
-            Log.d(TAG, "Unable to register motion detector: " + e.getLocalizedMessage());
-        }
+        orchestrator.addTask(TASK_MOTION, PERIPHERAL_INIT_TIMEOUT_MS, true, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException {
+                motionDetector = new MotionDetector(MOTION_DETECTOR_PIN);
+                motionDetectorEventListener = new MotionDetectorEventListener();
+                motionDetector.setOnMotionDetectedEventListener(motionDetectorEventListener);
+            }
+        });
 
         // Set up Camera Device
-        backgroundThread = new HandlerThread("Background Thread");
-        backgroundThread.start();
-        backgroundHandler = new Handler(backgroundThread.getLooper());
+        orchestrator.addTask(TASK_CAMERA, PERIPHERAL_INIT_TIMEOUT_MS, false, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException, InterruptedException {
+                // Opening is asynchronous; the task is done when the camera reports back.
+                final CountDownLatch opened = new CountDownLatch(1);
+                final String[] failure = new String[1];
+                deviceCamera.initializeCamera(MainActivity.this, backgroundHandler, new DeviceCamera.OnCameraOpenListener() {
+                    @Override
+                    public void onCameraOpened() {
+                        opened.countDown();
+                    }
 
-        deviceCamera = DeviceCamera.getInstance();
-        deviceCamera.initializeCamera(this, backgroundHandler);
+                    @Override
+                    public void onCameraOpenFailed(String reason) {
+                        failure[0] = reason;
+                        opened.countDown();
+                    }
+                });
+                opened.await();
+                if (null != failure[0]) {
+                    throw new IOException(failure[0]);
+                }
 
-        // Setup GPIO Button to trigger camera (for now).
-        try {
-            cameraButton = new Button(BUTTON_GPIO_PIN, Button.LogicState.PRESSED_WHEN_LOW);
-            cameraButton.setOnButtonEventListener(new Button.OnButtonEventListener() {
-                @Override
-                public void onButtonEvent(Button button, boolean pressed) {
-                 }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+                if (PRE_ROLL_ENABLED) {
+                    deviceCamera.startContinuousCapture(backgroundHandler, imageAvailableListener, PRE_ROLL_INTERVAL_MS);
+                }
+            }
+        });
 
-        backgroundHandler.post(new Runnable() {
+        // Setup GPIO Button to trigger camera (for now).
+        orchestrator.addTask(TASK_BUTTON, PERIPHERAL_INIT_TIMEOUT_MS, true, new StartupOrchestrator.InitTask() {
             @Override
-            public void run() {
-                imageClassifier = new ImageClassifier(MainActivity.this);
-                runOnUiThread(new Runnable() {
+            public void init() throws IOException {
+                cameraButton = new Button(BUTTON_GPIO_PIN, Button.LogicState.PRESSED_WHEN_LOW);
+                cameraButton.setOnButtonEventListener(new Button.OnButtonEventListener() {
                     @Override
-                    public void run() {
-                        statusView.setText("Ready");
-                        setBusy(false);
+                    public void onButtonEvent(Button button, boolean pressed) {
+                        if (true == pressed) {
+                            pipelineInput.onManualTrigger();
+                        }
                     }
                 });
             }
         });
+
+        orchestrator.addTask(TASK_CLASSIFIER, CLASSIFIER_INIT_TIMEOUT_MS, false, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException {
+                File modelDir = new File(getFilesDir(), MODEL_DIR);
+                File cascadeGraphFile = new File(modelDir, CASCADE_GRAPH_FILE);
+                File cascadeLabelsFile = new File(modelDir, CASCADE_LABELS_FILE);
+                ImageClassifier.Cascade cascade = null;
+                if (cascadeGraphFile.exists() && cascadeLabelsFile.exists()) {
+                    Log.d(TAG, "Classifier cascade enabled with " + cascadeGraphFile);
+                    cascade = new ImageClassifier.Cascade(cascadeGraphFile, cascadeLabelsFile,
+                            CASCADE_ESCALATION_THRESHOLD, new HashSet<>(Arrays.asList(CASCADE_WATCH_LIST)));
+                }
+                modelManager = new ModelManager(getAssets(), ImageClassifier.MODEL_FILE,
+                        ImageClassifier.readLabels(MainActivity.this), cascade,
+                        INFERENCE_SERVER_ENABLED ? SERVER_CLASSIFIER_POOL_SIZE : CLASSIFIER_POOL_SIZE, modelHandler);
+                modelHandler.post(modelCheckRunnable);
+                if (BENCHMARK_CLASSIFIER_POOL) {
+                    modelHandler.post(classifierPoolBenchmarkRunnable);
+                }
+
+                if (INFERENCE_SERVER_ENABLED) {
+                    InferenceServer server = new InferenceServer(new ModelInferenceBackend(), INFERENCE_BATCH_SIZE,
+                            INFERENCE_BATCH_WINDOW_MS, INFERENCE_CLIENT_QUOTA, INFERENCE_MAX_CLIENTS);
+                    try {
+                        server.start(new InetSocketAddress(INFERENCE_SERVER_PORT));
+                        inferenceServer = server;
+                        Log.d(TAG, "Inference server listening on port " + INFERENCE_SERVER_PORT);
+                        if (BENCHMARK_INFERENCE_SERVER) {
+                            modelHandler.post(inferenceServerBenchmarkRunnable);
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Unable to start inference server: " + e.getLocalizedMessage());
+                    }
+                }
+            }
+        });
+
+        // Set up detection history.
+        orchestrator.addTask(TASK_DETECTION_HISTORY, HISTORY_INIT_TIMEOUT_MS, false, new StartupOrchestrator.InitTask() {
+            @Override
+            public void init() throws IOException {
+                // New detections must still be journaled if the history fails to load or times out.
+                try {
+                    try {
+                        int count = detectionSpatialIndex.rebuild(detectionJournal, System.currentTimeMillis());
+                        Log.d(TAG, "Spatial index rebuilt with " + count + " detections");
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to rebuild spatial index", e);
+                    }
+                    int count = labelIndex.load(new File(getFilesDir(), LABEL_INDEX_FILE), detectionJournal);
+                    Log.d(TAG, "Label index loaded, " + count + " detections replayed from journal");
+                } finally {
+                    journalEventHandler.onHistoryLoaded();
+                }
+            }
+        });
     }
 
     @Override
@@ -254,52 +564,395 @@ public class MainActivity extends Activity {
 
         // Close the button.
         try {
-            cameraButton.close();
+            if (null != cameraButton) {
+                cameraButton.close();
+            }
+        } catch (IOException e) {
+        }
+
+        uiHandler.removeCallbacks(uiEventPollRunnable);
+        backgroundHandler.removeCallbacks(eventStatsRunnable);
+        backgroundHandler.removeCallbacks(periodicSnapshotRunnable);
+        try {
+            journalEventConsumer.stop();
+            if (null != uploadEventConsumer) {
+                uploadEventConsumer.stop();
+            }
+        } catch (InterruptedException e) {
+        }
+        Log.d(TAG, "Event bus: " + uiEventConsumer + ", " + journalEventConsumer);
+        if (null != uploadEventConsumer) {
+            Log.d(TAG, "Event bus: " + uploadEventConsumer);
+        }
+        if (null != telemetrySync) {
+            telemetrySync.stop();
+            Log.d(TAG, "Telemetry sync: " + telemetrySync);
+        }
+
+        if (null != inferenceServer) {
+            try {
+                inferenceServer.stop();
+            } catch (InterruptedException e) {
+            }
+            Log.d(TAG, "Inference server: " + inferenceServer);
+        }
+
+        modelHandler.removeCallbacks(modelCheckRunnable);
+        modelThread.quitSafely();
+        if (null != modelManager) {
+            modelManager.close();
+        }
+
+        try {
+            if (null != labelIndex && labelIndex.unsavedChanges() > 0) {
+                labelIndex.save(new File(getFilesDir(), LABEL_INDEX_FILE));
+            }
+        } catch (IOException e) {
+        }
+
+        try {
+            if (null != detectionJournal) {
+                detectionJournal.close();
+            }
         } catch (IOException e) {
         }
-    }
 
-    private void setBusy(boolean isBusy) {
         try {
-            gpioBusyLed.setValue(isBusy);
+            if (null != replayRecorder) {
+                replayRecorder.close();
+            }
         } catch (IOException e) {
         }
     }
 
-    private boolean isBusy () {
-        boolean busy = false;
+    // The LED mirrors this flag; it may come up after the rest of the device is ready.
+    private void setBusy(boolean isBusy) {
+        busy = isBusy;
         try {
-            busy = gpioBusyLed.getValue();
+            if (null != gpioBusyLed) {
+                gpioBusyLed.setValue(isBusy);
+            }
         } catch (IOException e) {
         }
-        return busy;
     }
 
+    private final Runnable uiEventPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            uiEventConsumer.poll(UI_EVENT_BATCH);
+            uiHandler.postDelayed(this, UI_EVENT_POLL_MS);
+        }
+    };
+
+    private final Runnable periodicSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pipelineInput.onPeriodicSnapshot();
+            backgroundHandler.postDelayed(this, PERIODIC_SNAPSHOT_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable eventStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Event bus: " + uiEventConsumer + ", " + journalEventConsumer);
+            if (null != uploadEventConsumer) {
+                Log.d(TAG, "Event bus: " + uploadEventConsumer);
+            }
+            if (null != telemetrySync) {
+                Log.d(TAG, "Telemetry sync: " + telemetrySync);
+            }
+
+            if (null != modelManager) {
+                ModelManager.Model model = modelManager.acquire();
+                try {
+                    ImageClassifier.CascadeStats cascadeStats = model.getCascadeStats();
+                    if (null != cascadeStats) {
+                        Log.d(TAG, "Classifier cascade: " + cascadeStats);
+                    }
+                } finally {
+                    model.release();
+                }
+            }
+            Log.d(TAG, "Capture scheduler:\n" + capturePipeline.getScheduler());
+            backgroundHandler.postDelayed(this, EVENT_STATS_INTERVAL_MS);
+        }
+    };
+
+    private class UiEventHandler implements EventConsumer.EventHandler {
+
+        @Override
+        public void onEvent(Event event) {
+            switch (event.type) {
+                case Event.TEMPERATURE:
+                    temperatureView.setText(getString(R.string.temperature) + " " + String.valueOf(event.value1));
+                    break;
+                case Event.PRESSURE:
+                    pressureView.setText(getString(R.string.pressure) + " " + String.valueOf(event.value1));
+                    break;
+                case Event.LOCATION:
+                    latitudeView.setText(getResources().getString(R.string.latitude) + " " + String.valueOf(event.value1));
+                    longitudeView.setText(getResources().getString(R.string.longitude) + " " + String.valueOf(event.value2));
+                    break;
+            }
+        }
+    }
+
+    private class JournalEventHandler implements EventConsumer.EventHandler {
+        private double latitude = Double.NaN;
+        private double longitude = Double.NaN;
+        // Detections seen while the history loads. Journaled or indexed before it has, they
+        // would be counted again when the journal is replayed. Null once loaded.
+        private ArrayList<DetectionEvent> pendingDetections = new ArrayList<>();
+
+        @Override
+        public synchronized void onEvent(Event event) {
+            if (event.type == Event.LOCATION) {
+                latitude = event.value1;
+                longitude = event.value2;
+            } else if (event.type == Event.DETECTION) {
+                DetectionEvent detection = new DetectionEvent(event.labelId, event.confidence, event.timestamp,
+                        latitude, longitude);
+                if (null != pendingDetections) {
+                    pendingDetections.add(detection);
+                } else {
+                    recordDetection(detection);
+                }
+            }
+        }
+
+        /**
+         * Records the detections held back while the history loaded, then records new ones as
+         * they arrive. Called once the load has finished, failed or timed out.
+         */
+        synchronized void onHistoryLoaded() {
+            if (null == pendingDetections) {
+                return;
+            }
+            ArrayList<DetectionEvent> pending = pendingDetections;
+            pendingDetections = null;
+            for (DetectionEvent detection : pending) {
+                recordDetection(detection);
+            }
+            Log.d(TAG, "Recorded " + pending.size() + " detections held back while loading history");
+        }
+
+        private void recordDetection(DetectionEvent detection) {
+            detectionSpatialIndex.evict(detection.timestamp);
+            if (detection.hasLocation()) {
+                detectionSpatialIndex.insert(detection);
+            }
+            labelIndex.add(detection.labelId, detection.timestamp, detection.confidence);
+            try {
+                detectionJournal.append(detection);
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to journal detection: " + e.getLocalizedMessage());
+            }
+
+            if (labelIndex.unsavedChanges() >= LABEL_INDEX_SAVE_INTERVAL) {
+                try {
+                    labelIndex.save(new File(getFilesDir(), LABEL_INDEX_FILE));
+                    // The snapshot covers the label index; the spatial index only looks back
+                    // DETECTION_MAX_AGE_MS. Journal segments older than both are not needed.
+                    detectionJournal.deleteBefore(Math.min(labelIndex.maxTimestamp(),
+                            detection.timestamp - DETECTION_MAX_AGE_MS));
+                } catch (IOException e) {
+                    Log.d(TAG, "Unable to save label index: " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private class UploadEventHandler implements EventConsumer.EventHandler {
+
+        @Override
+        public void onEvent(Event event) {
+            switch (event.type) {
+                case Event.TEMPERATURE:
+                    telemetrySync.record(TELEMETRY_TEMPERATURE, event.value1, event.timestamp);
+                    break;
+                case Event.PRESSURE:
+                    telemetrySync.record(TELEMETRY_PRESSURE, event.value1, event.timestamp);
+                    break;
+                case Event.LOCATION:
+                    telemetrySync.record(TELEMETRY_LATITUDE, event.value1, event.timestamp);
+                    telemetrySync.record(TELEMETRY_LONGITUDE, event.value2, event.timestamp);
+                    break;
+            }
+        }
+    }
+
+    private final Runnable modelCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            File modelDir = new File(getFilesDir(), MODEL_DIR);
+            File graphFile = new File(modelDir, MODEL_GRAPH_FILE);
+            File labelsFile = new File(modelDir, MODEL_LABELS_FILE);
+
+            if (graphFile.exists() && labelsFile.exists() && graphFile.lastModified() > loadedModelTimestamp) {
+                loadedModelTimestamp = graphFile.lastModified();
+                modelManager.swap(graphFile, labelsFile, lastFrame, modelSwapListener);
+            }
+            modelHandler.postDelayed(this, MODEL_CHECK_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable inferenceServerBenchmarkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            byte[] tensor = InferenceProtocol.encodeTensor(new float[ImageClassifier.INPUT_SIZE]);
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), INFERENCE_SERVER_PORT);
+            try {
+                for (int clients = 1; clients <= INFERENCE_BENCHMARK_CLIENTS; clients *= 2) {
+                    // Pipelining up to the quota shows what batching one client's requests gains.
+                    for (int depth = 1; depth <= INFERENCE_CLIENT_QUOTA; depth *= 2) {
+                        InferenceLoadGenerator.Report report = InferenceLoadGenerator.run(address, clients,
+                                INFERENCE_BENCHMARK_REQUESTS, depth, InferenceProtocol.TYPE_TENSOR, tensor);
+                        Log.d(TAG, "Inference server benchmark: " + report);
+                    }
+                }
+                Log.d(TAG, "Inference server: " + inferenceServer);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Inference server benchmark interrupted");
+            }
+        }
+    };
+
+    private final Runnable classifierPoolBenchmarkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Bitmap frame = Bitmap.createBitmap(ImageClassifier.IMAGE_SIZE, ImageClassifier.IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+            try {
+                ClassifierPoolBenchmark.run(modelManager, frame, CLASSIFIER_POOL_MAX_SIZE, CLASSIFIER_POOL_BENCHMARK_FRAMES);
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Classifier pool benchmark interrupted");
+            }
+        }
+    };
+
+    private final ModelManager.OnModelSwapListener modelSwapListener = new ModelManager.OnModelSwapListener() {
+        @Override
+        public void onModelSwapped(String modelFile, long swapMillis, float oldLatencyMillis, float newLatencyMillis) {
+            if (oldLatencyMillis > 0 && newLatencyMillis > oldLatencyMillis * 1.2f) {
+                Log.w(TAG, "New model is slower: " + oldLatencyMillis + "ms -> " + newLatencyMillis + "ms");
+            }
+        }
+
+        @Override
+        public void onModelSwapFailed(String modelFile, String reason) {
+            Log.w(TAG, "Model swap rejected for " + modelFile + ": " + reason);
+        }
+    };
+
     private ImageReader.OnImageAvailableListener imageAvailableListener = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(final ImageReader reader) {
-
-            // Turn on busy indicator so we know we are processing.
             Image image = reader.acquireLatestImage();
-            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.capacity()];
-            buffer.get(bytes);
-            Bitmap bitmapImage = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, null);
+            if (null == image) {
+                return;
+            }
+            int length;
+            try {
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                length = buffer.remaining();
+                if (frameBuffer.length < length) {
+                    frameBuffer = new byte[length];
+                }
+                buffer.get(frameBuffer, 0, length);
+            } finally {
+                image.close();
+            }
+            pipelineInput.onFrame(frameBuffer, length);
+        }
+    };
+
+    private final FrameSource cameraFrameSource = new FrameSource() {
+        @Override
+        public void requestFrame() {
+            deviceCamera.takePicture(backgroundHandler, imageAvailableListener);
+        }
+    };
+
+    private final BusyIndicator busyLedIndicator = new BusyIndicator() {
+        @Override
+        public void setBusy(boolean busy) {
+            MainActivity.this.setBusy(busy);
+        }
+    };
+
+    private class ModelFrameClassifier implements FrameClassifier {
+
+        @Override
+        public List<ClassificationResult> classify(byte[] jpeg, int length) {
+            Bitmap bitmapImage = BitmapFactory.decodeByteArray(jpeg, 0, length, null);
+
+            ModelManager.Model model = modelManager.acquire();
+            try {
+                // Send image to UI.
+                final Bitmap croppedImage = model.cropAndRescaleBitmap(bitmapImage);
+                lastFrame = croppedImage;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        cameraImageView.setImageBitmap(croppedImage);
+                        result1View.setText("");
+                        result2View.setText("");
+                        result3View.setText("");
+                    }
+                });
 
-            // Send image to UI.
-            final Bitmap croppedImage = imageClassifier.cropAndRescaleBitmap(bitmapImage);
+                return model.doRecognize(croppedImage);
+            } finally {
+                model.release();
+            }
+        }
+    }
+
+    // Each batch holds one context of the current model's pool for its whole run.
+    private class ModelInferenceBackend implements InferenceBackend {
+
+        @Override
+        public float[] preprocess(byte[] jpeg) {
+            Bitmap bitmapImage = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            if (null == bitmapImage) {
+                return null;
+            }
+            ModelManager.Model model = modelManager.acquire();
+            try {
+                return ImageClassifier.preprocess(model.cropAndRescaleBitmap(bitmapImage));
+            } finally {
+                model.release();
+            }
+        }
+
+        @Override
+        public List<List<ClassificationResult>> classify(List<float[]> inputs) {
+            ModelManager.Model model = modelManager.acquire();
+            try {
+                return model.doRecognizeBatch(inputs);
+            } finally {
+                model.release();
+            }
+        }
+    }
+
+    private class PipelineListener implements CapturePipeline.Listener {
+
+        @Override
+        public void onStatusChanged(final String status) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    statusView.setText("Identifying Image.");
-                    cameraImageView.setImageBitmap(croppedImage);
-                    result1View.setText("");
-                    result2View.setText("");
-                    result3View.setText("");
+                    statusView.setText(status);
                 }
             });
+        }
 
-            final List<ImageClassifier.ClassificationResult> results = imageClassifier.doRecognize(croppedImage);
+        @Override
+        public void onResults(final List<ClassificationResult> results) {
+            for (ClassificationResult result : results) {
+                eventBus.publishDetection(result.labelId, result.confidence);
+            }
 
             runOnUiThread(new Runnable() {
                 @Override
@@ -321,19 +974,77 @@ public class MainActivity extends Activity {
                     } else {
                         result3View.setText("");
                     }
-                    statusView.setText("Identifying Image.");
+                }
+            });
+        }
+
+        @Override
+        public void onTemperatureChanged(double temperature) {
+            eventBus.publishTemperature(temperature);
+        }
+
+        @Override
+        public void onPressureChanged(double pressure) {
+            eventBus.publishPressure(pressure);
+        }
+
+        @Override
+        public void onLocationChanged(double latitude, double longitude) {
+            eventBus.publishLocation(latitude, longitude);
+        }
+    }
+
+
+    private class StartupListener implements StartupOrchestrator.Listener {
+
+        @Override
+        public void onTaskFinished(String name, StartupOrchestrator.State state, long durationMillis, Throwable error) {
+            if (state == StartupOrchestrator.State.SUCCEEDED) {
+                Log.d(TAG, "Startup task " + name + " took " + durationMillis + "ms");
+            } else {
+                Log.w(TAG, "Startup task " + name + " " + state + " after " + durationMillis + "ms" +
+                        ((null != error) ? ": " + error.getLocalizedMessage() : ""));
+            }
+        }
 
-                    if (true == motionDetectionActive) {
-                        statusView.setText("Reseting");
+        @Override
+        public void onReady(long elapsedMillis, final List<String> unavailable) {
+            Log.i(TAG, "Ready after " + elapsedMillis + "ms" +
+                    (unavailable.isEmpty() ? "" : ", unavailable: " + unavailable));
+            // Capture still works without the motion detector, on the button and the timer.
+            final boolean canCapture = !unavailable.contains(TASK_CAMERA) && !unavailable.contains(TASK_CLASSIFIER);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (unavailable.isEmpty()) {
+                        statusView.setText("Ready");
                     } else {
-                        statusView.setText("Ready.");
+                        statusView.setText("Degraded, unavailable: " + TextUtils.join(", ", unavailable));
                     }
                     setBusy(false);
+                    if (true == canCapture) {
+                        capturePipeline.start();
+                        backgroundHandler.postDelayed(periodicSnapshotRunnable, PERIODIC_SNAPSHOT_INTERVAL_MS);
+                    }
                 }
             });
         }
-    };
 
+        @Override
+        public void onAllFinished(Map<String, Long> durationsMillis, long elapsedMillis) {
+            // One line per boot so init time regressions can be tracked across builds.
+            StringBuilder line = new StringBuilder().append(System.currentTimeMillis()).append(",total=").append(elapsedMillis);
+            for (Map.Entry<String, Long> entry : durationsMillis.entrySet()) {
+                line.append(',').append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            Log.i(TAG, "Startup: " + line);
+            try (PrintWriter writer = new PrintWriter(new FileWriter(new File(getFilesDir(), STARTUP_TIMES_FILE), true))) {
+                writer.println(line);
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to record startup times: " + e.getLocalizedMessage());
+            }
+        }
+    }
 
     private class DynamicSensorCallback extends SensorManager.DynamicSensorCallback {
 
@@ -383,18 +1094,7 @@ public class MainActivity extends Activity {
             if (event.values.length == 0) {
                 return;
             }
-            double newTemperature = Math.round((event.values[0] * 1.8 + 32) *10.00) / 10.00;
-
-            if (temperature != newTemperature) {
-                temperature = newTemperature;
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        temperatureView.setText(getString(R.string.temperature) + " " + String.valueOf(temperature));
-                    }
-                });
-            }
+            pipelineInput.onTemperature(event.values[0]);
         }
 
         @Override
@@ -410,18 +1110,7 @@ public class MainActivity extends Activity {
             if (event.values.length == 0) {
                 return;
             }
-            double newPressure = Math.round(event.values[0] * 10.0) / 10.0;
-
-            if (pressure != newPressure) {
-                pressure = newPressure;
-
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        pressureView.setText(getString(R.string.pressure) + " " + String.valueOf(pressure));
-                    }
-                });
-            }
+            pipelineInput.onPressure(event.values[0]);
         }
 
         @Override
@@ -435,8 +1124,7 @@ public class MainActivity extends Activity {
         @Override
         public void onLocationChanged(Location location) {
             Log.d(TAG, "Location update: " + location);
-            longitudeView.setText(getResources().getString(R.string.longitude) + " " + String.valueOf(location.getLongitude()));
-            latitudeView.setText(getResources().getString(R.string.latitude) + " " + String.valueOf(location.getLatitude()));
+            pipelineInput.onLocation(location.getLatitude(), location.getLongitude());
         }
 
         @Override
@@ -459,20 +1147,8 @@ public class MainActivity extends Activity {
 
         @Override
         public void onMotionDetectedEvent(boolean active) {
-
-            if (false == isBusy()) {
-
-                if (true == active) {
-                    setBusy(true);
-                    statusView.setText("Active");
-                    deviceCamera.takePicture(backgroundHandler, imageAvailableListener);
-                } else {
-                    setBusy(false);
-                    statusView.setText("Ready");
-                }
-            }
-
-            motionDetectionActive = active;
+            eventBus.publishMotion(active);
+            pipelineInput.onMotion(active);
         }
     }
 }
@@ -0,0 +1,313 @@
+package com.skiaddict.thingsexperiments;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns the active model, as a {@link ClassifierPool} of contexts, and replaces it with a new
+ * graph from local storage without stopping capture. Callers {@link #acquire()} the current
+ * model for each inference and release it afterwards; a replaced model is closed once its last
+ * in-flight inference releases it.
+ */
+
+public class ModelManager {
+    private static final String TAG = ModelManager.class.getSimpleName();
+
+    private static final int WARMUP_RUNS = 2;
+    private static final int TIMING_RUNS = 3;
+
+    public interface OnModelSwapListener {
+        void onModelSwapped(String modelFile, long swapMillis, float oldLatencyMillis, float newLatencyMillis);
+        void onModelSwapFailed(String modelFile, String reason);
+    }
+
+    public static class Model {
+        private final ClassifierPool pool;
+        private final String modelFile;
+        private final String[] labels;
+        // One reference belongs to the manager while this is the current model.
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile float averageLatencyMillis;
+
+        Model(ClassifierPool pool, String modelFile, String[] labels) {
+            this.pool = pool;
+            this.modelFile = modelFile;
+            this.labels = labels;
+        }
+
+        /**
+         * Classifies on the next idle context of this model, waiting for one if all are busy.
+         */
+        public List<ClassificationResult> doRecognize(Bitmap image) {
+            ImageClassifier classifier = pool.acquire();
+            try {
+                long start = SystemClock.elapsedRealtimeNanos();
+                List<ClassificationResult> results = classifier.doRecognize(image);
+                float latencyMillis = (SystemClock.elapsedRealtimeNanos() - start) / 1e6f;
+                averageLatencyMillis = (averageLatencyMillis == 0) ? latencyMillis : averageLatencyMillis * 0.9f + latencyMillis * 0.1f;
+                return results;
+            } finally {
+                pool.release(classifier);
+            }
+        }
+
+        /**
+         * Classifies preprocessed images together on one context. Not counted in the average
+         * latency, which is per frame.
+         */
+        public List<List<ClassificationResult>> doRecognizeBatch(List<float[]> inputs) {
+            ImageClassifier classifier = pool.acquire();
+            try {
+                return classifier.doRecognizeBatch(inputs);
+            } finally {
+                pool.release(classifier);
+            }
+        }
+
+        public Bitmap cropAndRescaleBitmap(Bitmap src) {
+            return ImageClassifier.cropAndRescaleBitmap(src);
+        }
+
+        public String getModelFile() {
+            return modelFile;
+        }
+
+        public int getPoolSize() {
+            return pool.size();
+        }
+
+        /**
+         * Moving average of {@link #doRecognize} latency, including any cascade.
+         */
+        public float getAverageLatencyMillis() {
+            return averageLatencyMillis;
+        }
+
+        private float timeFullModel(Bitmap frame) {
+            ImageClassifier classifier = pool.acquire();
+            try {
+                return ModelManager.timeFullModel(classifier, frame);
+            } finally {
+                pool.release(classifier);
+            }
+        }
+
+        /**
+         * Returns the cascade counters summed over all contexts, or null if this model does not
+         * run as a cascade.
+         */
+        public ImageClassifier.CascadeStats getCascadeStats() {
+            ImageClassifier.CascadeStats total = null;
+            for (ImageClassifier classifier : pool.getClassifiers()) {
+                if (classifier.isCascade()) {
+                    if (null == total) {
+                        total = new ImageClassifier.CascadeStats();
+                    }
+                    total.add(classifier.getCascadeStats());
+                }
+            }
+            return total;
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                pool.close();
+                Log.d(TAG, "Closed model " + modelFile);
+            }
+        }
+
+        private boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    // Already retired and closed; caller must re-read the current model.
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final AssetManager assetManager;
+    private final Handler modelHandler;
+    private final ImageClassifier.Cascade cascade;
+    private final int poolSize;
+    private final AtomicReference<Model> current;
+    private volatile float minReferenceConfidence;
+
+    /**
+     * Loads the initial model; blocks while its contexts are created.
+     *
+     * @param cascade fast first tier for this and every later model, or null.
+     * @param modelHandler handler for a thread other than the capture thread, used to load and
+     *                     warm up replacement models.
+     */
+    public ModelManager(AssetManager assetManager, String modelFile, String[] labels, ImageClassifier.Cascade cascade,
+                        int poolSize, Handler modelHandler) throws IOException {
+        this.assetManager = assetManager;
+        this.modelHandler = modelHandler;
+        this.cascade = cascade;
+        this.poolSize = poolSize;
+        ClassifierPool pool = ClassifierPool.create(assetManager, modelFile, labels, cascade, poolSize);
+        this.current = new AtomicReference<>(new Model(pool, modelFile, labels));
+    }
+
+    /**
+     * Returns the current model with a reference held. Must be paired with {@link Model#release()}.
+     */
+    public Model acquire() {
+        while (true) {
+            Model model = current.get();
+            if (model.retain()) {
+                return model;
+            }
+        }
+    }
+
+    /**
+     * Loads a separate pool of the current model, for example to benchmark pool sizes. The
+     * caller owns and closes it.
+     */
+    public ClassifierPool createPool(int size) throws IOException {
+        Model model = acquire();
+        try {
+            return ClassifierPool.create(assetManager, model.modelFile, model.labels, cascade, size);
+        } finally {
+            model.release();
+        }
+    }
+
+    /**
+     * Opts in to rejecting a new model whose top result on the reference frame is below
+     * {@code confidence}. Off (0) by default, since a valid model may simply not recognise
+     * anything in that frame.
+     */
+    public void setMinReferenceConfidence(float confidence) {
+        minReferenceConfidence = confidence;
+    }
+
+    /**
+     * Loads, warms up and validates the given graph in the background, then makes it current.
+     * Its labels must be the current model's, in the same order, since label ids are stored in
+     * the journal and label index. Its output on {@code referenceFrame}, or on a blank frame if
+     * null, must score every label with finite values.
+     */
+    public void swap(final File graphFile, final File labelsFile, final Bitmap referenceFrame,
+                     final OnModelSwapListener listener) {
+        modelHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                doSwap(graphFile, labelsFile, referenceFrame, listener);
+            }
+        });
+    }
+
+    public void close() {
+        current.get().release();
+    }
+
+    private void doSwap(File graphFile, File labelsFile, Bitmap referenceFrame, OnModelSwapListener listener) {
+        String modelFile = graphFile.getAbsolutePath();
+        long start = SystemClock.elapsedRealtime();
+
+        String[] labels;
+        try {
+            labels = ImageClassifier.readLabels(labelsFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read labels " + labelsFile, e);
+            listener.onModelSwapFailed(modelFile, "Labels not readable: " + e.getLocalizedMessage());
+            return;
+        }
+        if (!Arrays.equals(labels, current.get().labels)) {
+            listener.onModelSwapFailed(modelFile, "Label set differs from the current model");
+            return;
+        }
+
+        ClassifierPool candidate;
+        try {
+            candidate = ClassifierPool.create(assetManager, modelFile, labels, cascade, poolSize);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to load model " + modelFile, e);
+            listener.onModelSwapFailed(modelFile, "Load failed: " + e.getLocalizedMessage());
+            return;
+        }
+
+        Bitmap frame = referenceFrame;
+        if (null == frame) {
+            frame = Bitmap.createBitmap(ImageClassifier.IMAGE_SIZE, ImageClassifier.IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        }
+
+        float latencyMillis;
+        float previousLatencyMillis;
+        try {
+            // Every context has its own session and needs warming up.
+            for (ImageClassifier classifier : candidate.getClassifiers()) {
+                for (int i = 0; i < WARMUP_RUNS; ++i) {
+                    classifier.doRecognizeFull(frame);
+                    classifier.doRecognize(frame);
+                }
+            }
+            ImageClassifier first = candidate.getClassifiers().get(0);
+            String invalid = first.validateOutputs(frame);
+            List<ClassificationResult> results = first.doRecognize(frame);
+
+            // Both models are timed on the same frame through the full graph only, since how
+            // often a cascade escalates depends on the frame and not on the graph.
+            latencyMillis = timeFullModel(first, frame);
+            Model currentModel = acquire();
+            try {
+                previousLatencyMillis = currentModel.timeFullModel(frame);
+            } finally {
+                currentModel.release();
+            }
+
+            if (null == invalid && null != referenceFrame && minReferenceConfidence > 0 &&
+                    (results.isEmpty() || results.get(0).confidence < minReferenceConfidence)) {
+                invalid = "No result above " + minReferenceConfidence + " on reference frame";
+            }
+            if (null != invalid) {
+                candidate.close();
+                listener.onModelSwapFailed(modelFile, invalid);
+                return;
+            }
+        } catch (RuntimeException e) {
+            candidate.close();
+            Log.w(TAG, "Model " + modelFile + " failed validation", e);
+            listener.onModelSwapFailed(modelFile, "Validation failed: " + e.getLocalizedMessage());
+            return;
+        }
+
+        Model previous = current.getAndSet(new Model(candidate, modelFile, labels));
+        long swapMillis = SystemClock.elapsedRealtime() - start;
+
+        // Drop the manager's reference; in-flight inferences keep the old model alive until done.
+        previous.release();
+
+        Log.i(TAG, "Swapped " + previous.getModelFile() + " for " + modelFile + " in " + swapMillis + "ms, latency " +
+                previousLatencyMillis + "ms -> " + latencyMillis + "ms");
+        listener.onModelSwapped(modelFile, swapMillis, previousLatencyMillis, latencyMillis);
+    }
+
+    // Mean latency of the full graph alone over a few runs.
+    private static float timeFullModel(ImageClassifier classifier, Bitmap frame) {
+        long timingStart = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < TIMING_RUNS; ++i) {
+            classifier.doRecognizeFull(frame);
+        }
+        return (SystemClock.elapsedRealtimeNanos() - timingStart) / 1e6f / TIMING_RUNS;
+    }
+}
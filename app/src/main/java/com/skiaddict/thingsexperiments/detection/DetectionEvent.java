@@ -0,0 +1,27 @@
+package com.skiaddict.thingsexperiments.detection;
+
+/**
+ * A single classifier result tied to where and when the frame was taken. Latitude and
+ * longitude are NaN when there was no GPS fix at the time.
+ */
+
+public class DetectionEvent {
+
+    public final int labelId;
+    public final float confidence;
+    public final long timestamp;
+    public final double latitude;
+    public final double longitude;
+
+    public DetectionEvent(int labelId, float confidence, long timestamp, double latitude, double longitude) {
+        this.labelId = labelId;
+        this.confidence = confidence;
+        this.timestamp = timestamp;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public boolean hasLocation() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+}
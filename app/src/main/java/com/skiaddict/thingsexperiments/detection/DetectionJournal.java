@@ -0,0 +1,226 @@
+package com.skiaddict.thingsexperiments.detection;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only log of detection events, split into segment files named after the timestamp of
+ * their first event, with a sequence suffix if several start in the same millisecond. Each record is fixed size so a record torn by a power loss is simply
+ * dropped on the next replay, and cut off before the segment is appended to again.
+ *
+ * Once a segment fills up a new one is started, and whole segments older than what the
+ * indexes still need are deleted with {@link #deleteBefore(long)}, so the journal stays
+ * bounded. Events are assumed to be appended in time order.
+ */
+
+public class DetectionJournal implements AutoCloseable {
+    private static final String TAG = DetectionJournal.class.getSimpleName();
+
+    // timestamp, labelId, confidence, latitude, longitude
+    private static final int RECORD_BYTES = 8 + 4 + 4 + 8 + 8;
+
+    public interface Visitor {
+        void onDetectionEvent(DetectionEvent event);
+    }
+
+    private static class Segment {
+        final File file;
+        final long firstTimestamp;
+        // Orders segments started in the same millisecond.
+        final int sequence;
+
+        Segment(File file, long firstTimestamp, int sequence) {
+            this.file = file;
+            this.firstTimestamp = firstTimestamp;
+            this.sequence = sequence;
+        }
+    }
+
+    private final File file;
+    private final long segmentBytes;
+    private DataOutputStream out;
+    private File activeSegment;
+    private long activeBytes;
+
+    /**
+     * @param file base name of the segments.
+     * @param segmentBytes size at which a new segment is started.
+     */
+    public DetectionJournal(File file, long segmentBytes) {
+        this.file = file;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public synchronized void append(DetectionEvent event) throws IOException {
+        if (null == out || activeBytes >= segmentBytes) {
+            openSegment(event.timestamp);
+        }
+        out.writeLong(event.timestamp);
+        out.writeInt(event.labelId);
+        out.writeFloat(event.confidence);
+        out.writeDouble(event.latitude);
+        out.writeDouble(event.longitude);
+        out.flush();
+        activeBytes += RECORD_BYTES;
+    }
+
+    /**
+     * Replays every stored event with a timestamp at or after {@code since}, oldest first.
+     * Returns the number of events passed to the visitor.
+     */
+    public synchronized int replay(long since, Visitor visitor) throws IOException {
+        if (null != out) {
+            out.flush();
+        }
+
+        List<Segment> segments = listSegments();
+        int count = 0;
+        for (int i = 0; i < segments.size(); ++i) {
+            if (i + 1 < segments.size() && segments.get(i + 1).firstTimestamp < since) {
+                // Every event in this segment is at or before the next one's first event.
+                continue;
+            }
+            count += replay(segments.get(i).file, since, visitor);
+        }
+        Log.d(TAG, "Replayed " + count + " detection events from " + segments.size() + " segments of " + file);
+        return count;
+    }
+
+    /**
+     * Deletes every segment that only holds events before {@code timestamp}, so a replay from
+     * {@code timestamp} still sees every event at it. The segment being appended to is always
+     * kept. Returns the number of segments deleted.
+     */
+    public synchronized int deleteBefore(long timestamp) {
+        List<Segment> segments = listSegments();
+        int deleted = 0;
+        for (int i = 0; i + 1 < segments.size(); ++i) {
+            Segment segment = segments.get(i);
+            if (segments.get(i + 1).firstTimestamp >= timestamp || segment.file.equals(activeSegment)) {
+                break;
+            }
+            if (segment.file.delete()) {
+                deleted++;
+            } else {
+                Log.w(TAG, "Unable to delete journal segment " + segment.file);
+                break;
+            }
+        }
+        if (deleted > 0) {
+            Log.d(TAG, "Deleted " + deleted + " journal segments before " + timestamp);
+        }
+        return deleted;
+    }
+
+    public synchronized void close() throws IOException {
+        if (null != out) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+                activeSegment = null;
+            }
+        }
+    }
+
+    // Continues the newest segment after a restart if it has room, otherwise starts a new one.
+    private void openSegment(long timestamp) throws IOException {
+        close();
+
+        File segment = null;
+        List<Segment> segments = listSegments();
+        if (!segments.isEmpty()) {
+            File newest = segments.get(segments.size() - 1).file;
+            if (newest.length() < segmentBytes) {
+                segment = newest;
+            }
+        }
+        if (null == segment) {
+            segment = new File(file.getPath() + "." + timestamp);
+            for (int sequence = 1; segment.exists(); ++sequence) {
+                segment = new File(file.getPath() + "." + timestamp + "-" + sequence);
+            }
+        }
+
+        long length = segment.length();
+        if (length % RECORD_BYTES != 0) {
+            // Drop a torn trailing record so new records stay aligned.
+            length -= length % RECORD_BYTES;
+            try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+                raf.setLength(length);
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment, true)));
+        activeSegment = segment;
+        activeBytes = length;
+    }
+
+    private List<Segment> listSegments() {
+        ArrayList<Segment> segments = new ArrayList<>();
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        File[] files = (null == dir) ? null : dir.listFiles();
+        if (null != files) {
+            for (File candidate : files) {
+                String name = candidate.getName();
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                String suffix = name.substring(prefix.length());
+                int dash = suffix.indexOf('-', 1);
+                try {
+                    if (dash < 0) {
+                        segments.add(new Segment(candidate, Long.parseLong(suffix), 0));
+                    } else {
+                        segments.add(new Segment(candidate, Long.parseLong(suffix.substring(0, dash)),
+                                Integer.parseInt(suffix.substring(dash + 1))));
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a segment, for example a temporary file.
+                }
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                int order = Long.compare(lhs.firstTimestamp, rhs.firstTimestamp);
+                return (order != 0) ? order : Integer.compare(lhs.sequence, rhs.sequence);
+            }
+        });
+        return segments;
+    }
+
+    private static int replay(File segment, long since, Visitor visitor) throws IOException {
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            while (true) {
+                long timestamp = in.readLong();
+                int labelId = in.readInt();
+                float confidence = in.readFloat();
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                if (timestamp >= since) {
+                    visitor.onDetectionEvent(new DetectionEvent(labelId, confidence, timestamp, latitude, longitude));
+                    count++;
+                }
+            }
+        } catch (EOFException e) {
+            // End of segment, possibly with a partial trailing record.
+        }
+        return count;
+    }
+}
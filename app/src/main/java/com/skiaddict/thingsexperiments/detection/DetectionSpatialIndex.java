@@ -0,0 +1,198 @@
+package com.skiaddict.thingsexperiments.detection;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * In-memory index of detection events bucketed into square lat/lon grid cells, so a radius
+ * query only visits the cells overlapping the search circle, on both sides of the 180th
+ * meridian if the circle crosses it. Events usually arrive in timestamp order; one that does
+ * not is moved back to its place, so each cell stays oldest first and queries can stop at the
+ * first event older than the requested window.
+ */
+
+public class DetectionSpatialIndex {
+
+    public static final int ANY_LABEL = -1;
+
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double EARTH_RADIUS_METERS = 6371000.0;
+
+    private final double cellSizeDegrees;
+    private final long maxAgeMillis;
+    private final int maxEntries;
+
+    private final HashMap<Long, ArrayDeque<DetectionEvent>> cells = new HashMap<>();
+    private final ArrayDeque<DetectionEvent> byAge = new ArrayDeque<>();
+
+    public DetectionSpatialIndex(double cellSizeMeters, long maxAgeMillis, int maxEntries) {
+        this.cellSizeDegrees = cellSizeMeters / METERS_PER_DEGREE;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized void insert(DetectionEvent event) {
+        long key = cellKey(cellIndex(event.latitude), cellIndex(event.longitude));
+        ArrayDeque<DetectionEvent> cell = cells.get(key);
+        if (null == cell) {
+            cell = new ArrayDeque<>();
+            cells.put(key, cell);
+        }
+        addInOrder(cell, event);
+        addInOrder(byAge, event);
+
+        while (byAge.size() > maxEntries) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Drops every event older than the configured maximum age relative to {@code now}.
+     */
+    public synchronized void evict(long now) {
+        long cutoff = now - maxAgeMillis;
+        while (!byAge.isEmpty() && byAge.peekFirst().timestamp < cutoff) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Returns the events for {@code labelId} (or {@link #ANY_LABEL}) within {@code radiusMeters}
+     * of the given point with a timestamp at or after {@code since}, newest first within each cell.
+     * Events past the maximum age relative to {@code now} are evicted first.
+     */
+    public synchronized List<DetectionEvent> query(int labelId, double latitude, double longitude,
+                                                   double radiusMeters, long since, long now) {
+        evict(now);
+
+        double latSpan = radiusMeters / METERS_PER_DEGREE;
+        double lonSpan = latSpan / Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+
+        int minLat = cellIndex(latitude - latSpan);
+        int maxLat = cellIndex(latitude + latSpan);
+        // Longitude cell ranges as (min, max) pairs; a box crossing the 180th meridian is split
+        // into one range on each side.
+        double west = longitude - lonSpan;
+        double east = longitude + lonSpan;
+        int[] lonRanges;
+        if (west < -180) {
+            lonRanges = new int[] {cellIndex(-180), cellIndex(east), cellIndex(west + 360), cellIndex(180)};
+        } else if (east > 180) {
+            lonRanges = new int[] {cellIndex(west), cellIndex(180), cellIndex(-180), cellIndex(east - 360)};
+        } else {
+            lonRanges = new int[] {cellIndex(west), cellIndex(east)};
+        }
+        long lonCells = 0;
+        for (int i = 0; i < lonRanges.length; i += 2) {
+            lonCells += lonRanges[i + 1] - lonRanges[i] + 1;
+        }
+
+        ArrayList<DetectionEvent> result = new ArrayList<>();
+        long boxCells = (long) (maxLat - minLat + 1) * lonCells;
+        // Near a pole, or with a radius spanning all longitudes, the box is no help either.
+        boolean allLongitudes = lonSpan >= 180 || Math.abs(latitude) + latSpan >= 90;
+        if (allLongitudes || boxCells > cells.size()) {
+            // Large radius over a sparse index; cheaper to walk the occupied cells.
+            for (ArrayDeque<DetectionEvent> cell : cells.values()) {
+                collect(cell, labelId, latitude, longitude, radiusMeters, since, result);
+            }
+        } else {
+            for (int latCell = minLat; latCell <= maxLat; ++latCell) {
+                for (int i = 0; i < lonRanges.length; i += 2) {
+                    for (int lonCell = lonRanges[i]; lonCell <= lonRanges[i + 1]; ++lonCell) {
+                        ArrayDeque<DetectionEvent> cell = cells.get(cellKey(latCell, lonCell));
+                        if (null != cell) {
+                            collect(cell, labelId, latitude, longitude, radiusMeters, since, result);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clears the index and reloads the events from {@code journal} that are still within the
+     * maximum age. Returns the number of events indexed.
+     */
+    public int rebuild(DetectionJournal journal, long now) throws IOException {
+        synchronized (this) {
+            cells.clear();
+            byAge.clear();
+        }
+        journal.replay(now - maxAgeMillis, new DetectionJournal.Visitor() {
+            @Override
+            public void onDetectionEvent(DetectionEvent event) {
+                if (event.hasLocation()) {
+                    insert(event);
+                }
+            }
+        });
+        return size();
+    }
+
+    public synchronized int size() {
+        return byAge.size();
+    }
+
+    private static void collect(ArrayDeque<DetectionEvent> cell, int labelId, double latitude, double longitude,
+                                double radiusMeters, long since, List<DetectionEvent> result) {
+        Iterator<DetectionEvent> it = cell.descendingIterator();
+        while (it.hasNext()) {
+            DetectionEvent event = it.next();
+            if (event.timestamp < since) {
+                break;
+            }
+            if ((labelId == ANY_LABEL || event.labelId == labelId) &&
+                    distanceMeters(latitude, longitude, event.latitude, event.longitude) <= radiusMeters) {
+                result.add(event);
+            }
+        }
+    }
+
+    // Appends, or moves an out of order event back to its place so the deque stays oldest first.
+    private static void addInOrder(ArrayDeque<DetectionEvent> deque, DetectionEvent event) {
+        if (deque.isEmpty() || deque.peekLast().timestamp <= event.timestamp) {
+            deque.addLast(event);
+            return;
+        }
+        ArrayDeque<DetectionEvent> newer = new ArrayDeque<>();
+        while (!deque.isEmpty() && deque.peekLast().timestamp > event.timestamp) {
+            newer.addFirst(deque.pollLast());
+        }
+        deque.addLast(event);
+        deque.addAll(newer);
+    }
+
+    private void removeOldest() {
+        DetectionEvent oldest = byAge.pollFirst();
+        long key = cellKey(cellIndex(oldest.latitude), cellIndex(oldest.longitude));
+        ArrayDeque<DetectionEvent> cell = cells.get(key);
+        // Both are kept oldest first, so the oldest event is normally at the head of its cell.
+        cell.removeFirstOccurrence(oldest);
+        if (cell.isEmpty()) {
+            cells.remove(key);
+        }
+    }
+
+    private int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / cellSizeDegrees);
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    private static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                        Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+}
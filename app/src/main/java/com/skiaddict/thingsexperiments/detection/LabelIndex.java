@@ -0,0 +1,196 @@
+package com.skiaddict.thingsexperiments.detection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Inverted index from classifier label id to the times that label was detected. Answers
+ * last-seen, per-bucket counts and top labels over a window without touching the journal.
+ *
+ * The index is persisted as a snapshot file; events journaled after the snapshot are
+ * replayed on load, so the snapshot only needs to be written occasionally. Several events can
+ * share a millisecond, so the snapshot also records how many events at its newest timestamp
+ * it already holds, and replay starts at that timestamp skipping those.
+ */
+
+public class LabelIndex {
+
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private PostingList[] postings;
+    private long maxTimestamp;
+    // Number of events indexed at exactly maxTimestamp.
+    private int maxTimestampCount;
+    private int unsavedChanges;
+
+    public static class LabelCount {
+        LabelCount(int labelId, int count) {
+            this.labelId = labelId;
+            this.count = count;
+        }
+
+        public final int labelId;
+        public final int count;
+    }
+
+    public LabelIndex(int numLabels) {
+        postings = new PostingList[numLabels];
+    }
+
+    public synchronized void add(int labelId, long timestamp, float confidence) {
+        if (labelId >= postings.length) {
+            postings = Arrays.copyOf(postings, labelId + 1);
+        }
+        if (null == postings[labelId]) {
+            postings[labelId] = new PostingList();
+        }
+        postings[labelId].add(timestamp, confidence);
+        if (timestamp > maxTimestamp) {
+            maxTimestamp = timestamp;
+            maxTimestampCount = 1;
+        } else if (timestamp == maxTimestamp) {
+            maxTimestampCount++;
+        }
+        unsavedChanges++;
+    }
+
+    /**
+     * Returns the last time {@code labelId} was detected, or -1 if it never was.
+     */
+    public synchronized long lastSeen(int labelId) {
+        PostingList list = get(labelId);
+        return (null == list) ? -1 : list.lastTimestamp();
+    }
+
+    /**
+     * Returns the number of detections of {@code labelId} with at least {@code minConfidence}
+     * in each of {@code bucketCount} consecutive buckets starting at {@code from}.
+     */
+    public synchronized int[] countPerBucket(int labelId, long from, long bucketMillis, int bucketCount,
+                                             float minConfidence) {
+        int[] counts = new int[bucketCount];
+        PostingList list = get(labelId);
+        if (null != list) {
+            list.countPerBucket(from, bucketMillis, minConfidence, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns up to {@code limit} labels with the most detections in {@code [from, to)}, most
+     * frequent first. {@code minConfidence} is applied in steps of 1/16, rounding down, so whole
+     * hours of the window are answered from per-hour counts without decoding any entries.
+     */
+    public synchronized List<LabelCount> topLabels(long from, long to, float minConfidence, int limit) {
+        ArrayList<LabelCount> result = new ArrayList<>();
+        if (to <= from) {
+            return result;
+        }
+        int minBand = (PostingList.quantize(minConfidence) & 0xFF) >> PostingList.BAND_SHIFT;
+        for (int labelId = 0; labelId < postings.length; ++labelId) {
+            PostingList list = postings[labelId];
+            if (null == list || list.lastTimestamp() < from) {
+                continue;
+            }
+            int count = list.countInWindow(from, to, minBand);
+            if (count > 0) {
+                result.add(new LabelCount(labelId, count));
+            }
+        }
+
+        Collections.sort(result, new Comparator<LabelCount>() {
+            @Override
+            public int compare(LabelCount lhs, LabelCount rhs) {
+                return Integer.compare(rhs.count, lhs.count);
+            }
+        });
+        return (result.size() > limit) ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    public synchronized long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public synchronized int unsavedChanges() {
+        return unsavedChanges;
+    }
+
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(maxTimestamp);
+            out.writeInt(maxTimestampCount);
+            out.writeInt(postings.length);
+            for (int labelId = 0; labelId < postings.length; ++labelId) {
+                if (null != postings[labelId]) {
+                    out.writeInt(labelId);
+                    postings[labelId].writeTo(out);
+                }
+            }
+            out.writeInt(-1);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        unsavedChanges = 0;
+    }
+
+    /**
+     * Loads the snapshot in {@code file}, if any, then indexes every event in {@code journal}
+     * newer than the snapshot. Returns the number of journal events applied.
+     */
+    public int load(File file, DetectionJournal journal) throws IOException {
+        final long since;
+        final int[] skip = new int[1];
+        synchronized (this) {
+            if (file.exists()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    if (in.readInt() != SNAPSHOT_VERSION) {
+                        throw new IOException("Unsupported label index snapshot " + file);
+                    }
+                    maxTimestamp = in.readLong();
+                    maxTimestampCount = in.readInt();
+                    postings = new PostingList[Math.max(postings.length, in.readInt())];
+                    int labelId;
+                    while ((labelId = in.readInt()) >= 0) {
+                        postings[labelId] = PostingList.readFrom(in);
+                    }
+                }
+            }
+            unsavedChanges = 0;
+            since = maxTimestamp;
+            skip[0] = maxTimestampCount;
+        }
+
+        final int[] applied = new int[1];
+        journal.replay(since, new DetectionJournal.Visitor() {
+            @Override
+            public void onDetectionEvent(DetectionEvent event) {
+                // The first events journaled at the snapshot's newest timestamp are in it already.
+                if (event.timestamp == since && skip[0] > 0) {
+                    skip[0]--;
+                    return;
+                }
+                add(event.labelId, event.timestamp, event.confidence);
+                applied[0]++;
+            }
+        });
+        return applied[0];
+    }
+
+    private PostingList get(int labelId) {
+        return (labelId >= 0 && labelId < postings.length) ? postings[labelId] : null;
+    }
+}
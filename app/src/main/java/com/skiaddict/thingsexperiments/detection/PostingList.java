@@ -0,0 +1,246 @@
+package com.skiaddict.thingsexperiments.detection;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Time-ordered occurrences of a single label. Each entry is stored as a varint timestamp
+ * delta followed by the confidence quantized to one byte. A checkpoint every
+ * {@link #SKIP_INTERVAL} entries lets range queries start decoding near the window instead
+ * of at the beginning of history.
+ *
+ * Alongside the entries, each hour that has any keeps a count per confidence band, so a count
+ * over a long window only decodes the partial hours at its edges.
+ */
+
+class PostingList {
+
+    private static final int SKIP_INTERVAL = 64;
+    private static final int INITIAL_CAPACITY = 32;
+
+    static final long BUCKET_MILLIS = 60 * 60 * 1000;
+    // Quantized confidences per band; 16 bands of 1/16 each.
+    static final int BAND_SHIFT = 4;
+    private static final int BANDS = 256 >> BAND_SHIFT;
+
+    private byte[] data = new byte[INITIAL_CAPACITY];
+    private int length;
+    private int count;
+    private long lastTimestamp;
+    private float lastConfidence;
+
+    // Timestamp preceding, and byte offset of, every SKIP_INTERVAL-th entry.
+    private long[] skipBase = new long[4];
+    private int[] skipOffset = new int[4];
+    private int skipCount;
+
+    // Hour number of every hour with entries, ascending, and its count per confidence band.
+    private long[] bucketIds = new long[4];
+    private int[] bandCounts = new int[4 * BANDS];
+    private int bucketCount;
+
+    void add(long timestamp, float confidence) {
+        // Entries must not go backwards in time; clamp rather than corrupt the deltas.
+        long clamped = Math.max(timestamp, lastTimestamp);
+
+        if (count % SKIP_INTERVAL == 0) {
+            if (skipCount == skipBase.length) {
+                skipBase = Arrays.copyOf(skipBase, skipCount * 2);
+                skipOffset = Arrays.copyOf(skipOffset, skipCount * 2);
+            }
+            skipBase[skipCount] = lastTimestamp;
+            skipOffset[skipCount] = length;
+            skipCount++;
+        }
+
+        ensureCapacity(length + 11);
+        length = writeVarLong(data, length, clamped - lastTimestamp);
+        byte quantized = quantize(confidence);
+        data[length++] = quantized;
+
+        long bucket = clamped / BUCKET_MILLIS;
+        if (bucketCount == 0 || bucketIds[bucketCount - 1] != bucket) {
+            if (bucketCount == bucketIds.length) {
+                bucketIds = Arrays.copyOf(bucketIds, bucketCount * 2);
+                bandCounts = Arrays.copyOf(bandCounts, bucketCount * 2 * BANDS);
+            }
+            bucketIds[bucketCount++] = bucket;
+        }
+        bandCounts[(bucketCount - 1) * BANDS + ((quantized & 0xFF) >> BAND_SHIFT)]++;
+
+        lastTimestamp = clamped;
+        lastConfidence = confidence;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    float lastConfidence() {
+        return lastConfidence;
+    }
+
+    /**
+     * Adds the number of entries in {@code [from, from + counts.length * bucketMillis)} with at
+     * least {@code minConfidence} into the matching slot of {@code counts}. Returns the total.
+     */
+    int countPerBucket(long from, long bucketMillis, float minConfidence, int[] counts) {
+        return decode(from, bucketMillis, quantize(minConfidence) & 0xFF, counts);
+    }
+
+    /**
+     * Returns the number of entries in {@code [from, to)} whose confidence band is at least
+     * {@code minBand}. Whole hours come from the per-hour band counts; only the partial hours
+     * at either edge of the window are decoded.
+     */
+    int countInWindow(long from, long to, int minBand) {
+        if (count == 0 || lastTimestamp < from || to <= from) {
+            return 0;
+        }
+        int minQuantized = minBand << BAND_SHIFT;
+        long firstFull = (from + BUCKET_MILLIS - 1) / BUCKET_MILLIS;
+        long endFull = to / BUCKET_MILLIS;
+        int[] total = new int[1];
+        if (firstFull >= endFull) {
+            decode(from, to - from, minQuantized, total);
+            return total[0];
+        }
+
+        if (from < firstFull * BUCKET_MILLIS) {
+            decode(from, firstFull * BUCKET_MILLIS - from, minQuantized, total);
+        }
+        for (int i = findBucket(firstFull); i < bucketCount && bucketIds[i] < endFull; ++i) {
+            for (int band = minBand; band < BANDS; ++band) {
+                total[0] += bandCounts[i * BANDS + band];
+            }
+        }
+        if (endFull * BUCKET_MILLIS < to) {
+            decode(endFull * BUCKET_MILLIS, to - endFull * BUCKET_MILLIS, minQuantized, total);
+        }
+        return total[0];
+    }
+
+    private int decode(long from, long bucketMillis, int minQuantized, int[] counts) {
+        long to = from + counts.length * bucketMillis;
+        if (count == 0 || lastTimestamp < from) {
+            return 0;
+        }
+
+        int skip = findSkip(from);
+        long timestamp = skipBase[skip];
+        int pos = skipOffset[skip];
+        int total = 0;
+        while (pos < length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            timestamp += delta;
+            int confidence = data[pos++] & 0xFF;
+
+            if (timestamp >= to) {
+                break;
+            }
+            if (timestamp >= from && confidence >= minQuantized) {
+                counts[(int) ((timestamp - from) / bucketMillis)]++;
+                total++;
+            }
+        }
+        return total;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        out.writeFloat(lastConfidence);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    static PostingList readFrom(DataInputStream in) throws IOException {
+        PostingList list = new PostingList();
+        int storedCount = in.readInt();
+        float storedLastConfidence = in.readFloat();
+        int storedLength = in.readInt();
+        byte[] stored = new byte[storedLength];
+        in.readFully(stored);
+
+        // Re-add through the normal path so the skip checkpoints are rebuilt.
+        int pos = 0;
+        long timestamp = 0;
+        for (int i = 0; i < storedCount; ++i) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = stored[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            timestamp += delta;
+            list.add(timestamp, (stored[pos++] & 0xFF) / 255f);
+        }
+        list.lastConfidence = storedLastConfidence;
+        return list;
+    }
+
+    // Last checkpoint whose preceding timestamp is strictly before from; every entry ahead of
+    // it is then known to be outside the window.
+    private int findSkip(long from) {
+        int lo = 0;
+        int hi = skipCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (skipBase[mid] < from) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // First hour with entries at or after the given hour number.
+    private int findBucket(long bucket) {
+        int lo = 0;
+        int hi = bucketCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (bucketIds[mid] < bucket) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > data.length) {
+            data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+        }
+    }
+
+    private static int writeVarLong(byte[] buffer, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    static byte quantize(float confidence) {
+        return (byte) Math.round(Math.max(0f, Math.min(1f, confidence)) * 255f);
+    }
+}
@@ -0,0 +1,44 @@
+package com.skiaddict.thingsexperiments.events;
+
+/**
+ * A reusable event slot. The bus owns one per ring position and each consumer owns one it
+ * copies into, so no event is ever allocated after startup. Which fields are meaningful
+ * depends on {@link #type}.
+ */
+
+public class Event {
+
+    public static final int MOTION = 1;
+    public static final int TEMPERATURE = 2;
+    public static final int PRESSURE = 3;
+    public static final int LOCATION = 4;
+    public static final int DETECTION = 5;
+
+    // Fields are volatile so a consumer copying a slot sees either a complete event or a
+    // changed sequence number afterwards.
+    public volatile int type;
+    public volatile long publishNanos;
+    public volatile long timestamp;
+
+    // MOTION
+    public volatile boolean active;
+
+    // TEMPERATURE, PRESSURE (value1) and LOCATION (latitude, longitude).
+    public volatile double value1;
+    public volatile double value2;
+
+    // DETECTION
+    public volatile int labelId;
+    public volatile float confidence;
+
+    void copyFrom(Event other) {
+        type = other.type;
+        publishNanos = other.publishNanos;
+        timestamp = other.timestamp;
+        active = other.active;
+        value1 = other.value1;
+        value2 = other.value2;
+        labelId = other.labelId;
+        confidence = other.confidence;
+    }
+}
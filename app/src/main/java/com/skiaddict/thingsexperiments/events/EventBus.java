@@ -0,0 +1,181 @@
+package com.skiaddict.thingsexperiments.events;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free broadcast ring of pre-allocated {@link Event} slots. Publishers claim a sequence
+ * number, fill the slot and mark it published; each {@link EventConsumer} follows with its
+ * own cursor. Publishers never wait for consumers: a consumer that falls a full ring behind
+ * skips ahead and counts the events it missed. A publisher only waits for another publisher
+ * still filling the same slot a full ring earlier.
+ *
+ * Consumers with nothing to read may block until the next publish; publishers only take the
+ * wait lock to signal when a consumer is actually blocked.
+ */
+
+public class EventBus {
+
+    // Slot state before anything was published there.
+    static final long EMPTY = -1;
+
+    private final Event[] slots;
+    private final int mask;
+    // Per slot: the sequence it holds once published, or writing(sequence) while being filled.
+    private final AtomicLongArray published;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition publishedCondition = waitLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * @param size number of slots, rounded up to a power of two.
+     */
+    public EventBus(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        slots = new Event[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = new Event();
+        }
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            published.set(i, EMPTY);
+        }
+    }
+
+    public void publishMotion(boolean active) {
+        long sequence = claim();
+        Event event = slots[(int) (sequence & mask)];
+        event.type = Event.MOTION;
+        event.active = active;
+        publish(sequence, event);
+    }
+
+    public void publishTemperature(double temperature) {
+        long sequence = claim();
+        Event event = slots[(int) (sequence & mask)];
+        event.type = Event.TEMPERATURE;
+        event.value1 = temperature;
+        publish(sequence, event);
+    }
+
+    public void publishPressure(double pressure) {
+        long sequence = claim();
+        Event event = slots[(int) (sequence & mask)];
+        event.type = Event.PRESSURE;
+        event.value1 = pressure;
+        publish(sequence, event);
+    }
+
+    public void publishLocation(double latitude, double longitude) {
+        long sequence = claim();
+        Event event = slots[(int) (sequence & mask)];
+        event.type = Event.LOCATION;
+        event.value1 = latitude;
+        event.value2 = longitude;
+        publish(sequence, event);
+    }
+
+    public void publishDetection(int labelId, float confidence) {
+        long sequence = claim();
+        Event event = slots[(int) (sequence & mask)];
+        event.type = Event.DETECTION;
+        event.labelId = labelId;
+        event.confidence = confidence;
+        publish(sequence, event);
+    }
+
+    int size() {
+        return slots.length;
+    }
+
+    /**
+     * Sequence number the next published event will get.
+     */
+    long nextSequence() {
+        return nextSequence.get();
+    }
+
+    /**
+     * Copies event {@code sequence} into {@code target}. Returns 1 on success, 0 if it has not
+     * been published yet and -1 if it was already overwritten by a later event.
+     */
+    int read(long sequence, Event target) {
+        int index = (int) (sequence & mask);
+        long state = published.get(index);
+        if (state != sequence) {
+            if (state > sequence || (state < EMPTY && sequenceBeingWritten(state) > sequence)) {
+                return -1;
+            }
+            return 0;
+        }
+        target.copyFrom(slots[index]);
+        return (published.get(index) == sequence) ? 1 : -1;
+    }
+
+    /**
+     * Blocks until event {@code sequence} can be read (published, or already overwritten), or
+     * until {@link #wakeWaiters()} is called once the consumer is no longer running.
+     */
+    void awaitPublished(long sequence, EventConsumer consumer) throws InterruptedException {
+        waiters.incrementAndGet();
+        waitLock.lock();
+        try {
+            // Checked under the lock, so a publish or stop after this always signals us.
+            if (consumer.isRunning() && !isAvailable(sequence)) {
+                publishedCondition.await();
+            }
+        } finally {
+            waitLock.unlock();
+            waiters.decrementAndGet();
+        }
+    }
+
+    void wakeWaiters() {
+        waitLock.lock();
+        try {
+            publishedCondition.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    private boolean isAvailable(long sequence) {
+        long state = published.get((int) (sequence & mask));
+        return state >= sequence || (state < EMPTY && sequenceBeingWritten(state) > sequence);
+    }
+
+    private long claim() {
+        long sequence = nextSequence.getAndIncrement();
+        int index = (int) (sequence & mask);
+        long previous = (sequence < slots.length) ? EMPTY : sequence - slots.length;
+        // The slot's last occupant must be published before it is reused; otherwise two
+        // publishers a ring apart would fill the same slot at once.
+        while (!published.compareAndSet(index, previous, writing(sequence))) {
+            Thread.yield();
+        }
+        return sequence;
+    }
+
+    private void publish(long sequence, Event event) {
+        event.publishNanos = System.nanoTime();
+        event.timestamp = System.currentTimeMillis();
+        published.set((int) (sequence & mask), sequence);
+        if (waiters.get() > 0) {
+            wakeWaiters();
+        }
+    }
+
+    private static long writing(long sequence) {
+        return -sequence - 2;
+    }
+
+    private static long sequenceBeingWritten(long state) {
+        return -state - 2;
+    }
+}
@@ -0,0 +1,159 @@
+package com.skiaddict.thingsexperiments.events;
+
+/**
+ * Reads an {@link EventBus} at its own pace with a private cursor. Either call {@link #poll(int)}
+ * from a thread of your choosing (for example a UI handler) or {@link #start(WaitStrategy)} a
+ * dedicated thread that waits for events with the given strategy.
+ */
+
+public class EventConsumer {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int BATCH_SIZE = 64;
+
+    public interface EventHandler {
+        void onEvent(Event event);
+    }
+
+    public enum WaitStrategy {
+        // Lowest latency, burns a core.
+        BUSY_SPIN,
+        // Spins briefly, then yields the CPU between checks.
+        YIELDING,
+        // Spins briefly, then blocks until the next publish. For background consumers.
+        BLOCKING
+    }
+
+    private final EventBus bus;
+    private final String name;
+    private final EventHandler handler;
+    private final Event event = new Event();
+
+    private long sequence;
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long consumed;
+    private volatile long dropped;
+    private volatile long totalLatencyNanos;
+    private volatile long maxLatencyNanos;
+
+    /**
+     * Starts consuming with the next event published after this call.
+     */
+    public EventConsumer(EventBus bus, String name, EventHandler handler) {
+        this.bus = bus;
+        this.name = name;
+        this.handler = handler;
+        this.sequence = bus.nextSequence();
+    }
+
+    /**
+     * Handles up to {@code maxEvents} published events. Returns the number handled.
+     */
+    public int poll(int maxEvents) {
+        int handled = 0;
+        while (handled < maxEvents) {
+            int status = bus.read(sequence, event);
+            if (status == 0) {
+                break;
+            }
+            if (status < 0) {
+                // Lapped by the publishers; resume at the oldest event still in the ring.
+                long oldest = Math.max(sequence + 1, bus.nextSequence() - bus.size());
+                dropped += oldest - sequence;
+                sequence = oldest;
+                continue;
+            }
+
+            long latency = System.nanoTime() - event.publishNanos;
+            totalLatencyNanos += latency;
+            if (latency > maxLatencyNanos) {
+                maxLatencyNanos = latency;
+            }
+            consumed++;
+            sequence++;
+            handled++;
+            handler.onEvent(event);
+        }
+        return handled;
+    }
+
+    public synchronized void start(final WaitStrategy waitStrategy) {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int idle = 0;
+                try {
+                    while (running) {
+                        if (poll(BATCH_SIZE) > 0) {
+                            idle = 0;
+                        } else {
+                            idleWait(waitStrategy, idle++);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopping.
+                }
+            }
+        }, "EventConsumer " + name);
+        thread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        bus.wakeWaiters();
+        if (null != thread) {
+            thread.join();
+            thread = null;
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    public long getConsumed() {
+        return consumed;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public float getMeanLatencyMicros() {
+        long count = consumed;
+        return (count == 0) ? 0 : totalLatencyNanos / 1e3f / count;
+    }
+
+    public float getMaxLatencyMicros() {
+        return maxLatencyNanos / 1e3f;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": consumed=" + getConsumed() + " dropped=" + getDropped() +
+                " latency mean=" + getMeanLatencyMicros() + "us max=" + getMaxLatencyMicros() + "us";
+    }
+
+    private void idleWait(WaitStrategy waitStrategy, int idle) throws InterruptedException {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELDING:
+                if (idle >= SPIN_TRIES) {
+                    Thread.yield();
+                }
+                break;
+            case BLOCKING:
+                if (idle >= SPIN_TRIES) {
+                    bus.awaitPublished(sequence, this);
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+public interface BusyIndicator {
+    void setBusy(boolean busy);
+}
@@ -0,0 +1,322 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The motion-triggered capture and classification flow, independent of Android so it can be
+ * driven by real peripherals in {@code MainActivity} or by a replay file on a desktop JVM.
+ *
+ * By default a motion edge requests a single frame. With a pre-roll {@link FrameRing} set, the
+ * camera streams frames continuously at a low rate and a motion edge instead classifies the
+ * frames from just before and after the trigger, best candidate first, stopping early once
+ * one is confidently recognised.
+ *
+ * Captures are requested by motion, the manual button and a periodic timer and run one at a
+ * time through a {@link CaptureScheduler}: a button press goes ahead of queued motion captures
+ * and preempts a motion burst that is still waiting for its frames.
+ *
+ * All times come from a {@link Clock}, so a replay driving the pipeline through its recorded
+ * times schedules and windows frames exactly as the original run did.
+ */
+
+public class CapturePipeline implements PipelineInput {
+
+    public interface Listener {
+        void onStatusChanged(String status);
+        void onResults(List<ClassificationResult> results);
+        void onTemperatureChanged(double temperature);
+        void onPressureChanged(double pressure);
+        void onLocationChanged(double latitude, double longitude);
+    }
+
+    private static final int MAX_QUEUED_CAPTURES = 2;
+
+    private final FrameSource frameSource;
+    private final FrameClassifier frameClassifier;
+    private final BusyIndicator busyIndicator;
+    private final Listener listener;
+    private final Clock clock;
+    private final PipelineStats stats = new PipelineStats();
+    private final CaptureScheduler scheduler;
+
+    // Guards starting, preempting and completing captures, and the pre-roll ring.
+    private final Object captureLock = new Object();
+    private boolean started;
+    // Single-frame mode: a frame was requested and has not arrived yet.
+    private boolean frameRequested;
+    // Pre-roll mode: the running burst is being classified and can no longer be preempted.
+    private boolean classifying;
+
+    private volatile boolean motionDetectionActive;
+    private volatile long triggerNanos;
+
+    private FrameRing preRoll;
+    private int postTriggerFrames;
+    private float earlyExitConfidence;
+
+    private volatile double temperature;
+    private volatile double pressure;
+    private volatile double latitude;
+    private volatile double longitude;
+    private volatile boolean hasLocation;
+
+    public CapturePipeline(FrameSource frameSource, FrameClassifier frameClassifier, BusyIndicator busyIndicator,
+                           Listener listener) {
+        this(frameSource, frameClassifier, busyIndicator, listener, Clock.SYSTEM);
+    }
+
+    public CapturePipeline(FrameSource frameSource, FrameClassifier frameClassifier, BusyIndicator busyIndicator,
+                           Listener listener, Clock clock) {
+        this.frameSource = frameSource;
+        this.frameClassifier = frameClassifier;
+        this.busyIndicator = busyIndicator;
+        this.listener = listener;
+        this.clock = clock;
+        this.scheduler = new CaptureScheduler(MAX_QUEUED_CAPTURES, clock);
+    }
+
+    /**
+     * Switches to pre-roll mode. Must be called before frames start arriving.
+     */
+    public void setPreRoll(FrameRing preRoll, int postTriggerFrames, float earlyExitConfidence) {
+        this.preRoll = preRoll;
+        this.postTriggerFrames = postTriggerFrames;
+        this.earlyExitConfidence = earlyExitConfidence;
+    }
+
+    /**
+     * Starts running captures once the camera and classifier are up. Requests made before this
+     * wait in the scheduler.
+     */
+    public void start() {
+        synchronized (captureLock) {
+            started = true;
+            startNext();
+        }
+    }
+
+    @Override
+    public void onMotion(boolean active) {
+        motionDetectionActive = active;
+
+        if (true == active) {
+            submit(CaptureScheduler.Priority.MOTION);
+        } else {
+            synchronized (captureLock) {
+                if (started && null == scheduler.getRunning()) {
+                    listener.onStatusChanged("Ready");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onManualTrigger() {
+        submit(CaptureScheduler.Priority.MANUAL);
+    }
+
+    @Override
+    public void onPeriodicSnapshot() {
+        submit(CaptureScheduler.Priority.PERIODIC);
+    }
+
+    private void submit(CaptureScheduler.Priority priority) {
+        synchronized (captureLock) {
+            scheduler.submit(priority);
+            if (scheduler.shouldPreempt() && isPending()) {
+                if (null != preRoll) {
+                    preRoll.endBurst();
+                }
+                scheduler.preempt();
+            }
+            startNext();
+        }
+    }
+
+    // Whether the running capture is still waiting for frames. Called with captureLock held.
+    private boolean isPending() {
+        return (null != preRoll) ? preRoll.isTriggered() && !classifying : frameRequested;
+    }
+
+    // Starts the next capture if none is running. Called with captureLock held.
+    private boolean startNext() {
+        if (!started) {
+            return false;
+        }
+        CaptureScheduler.Priority priority = scheduler.startNext();
+        if (null == priority) {
+            return false;
+        }
+
+        busyIndicator.setBusy(true);
+        triggerNanos = clock.nanoTime();
+        listener.onStatusChanged("Active");
+        if (null != preRoll) {
+            // Only motion needs to follow the subject after the trigger. A preempted burst keeps
+            // its original trigger time so its pre-roll frames still count.
+            preRoll.trigger((priority == CaptureScheduler.Priority.MOTION) ? postTriggerFrames : 1,
+                    scheduler.getRunningSubmitNanos());
+        } else if (!frameRequested) {
+            // A preempted capture's frame is still on its way and serves the new one.
+            frameRequested = true;
+            frameSource.requestFrame();
+        }
+        return true;
+    }
+
+    @Override
+    public void onFrame(byte[] jpeg, int length) {
+        if (null != preRoll) {
+            onPreRollFrame(jpeg, length);
+            return;
+        }
+
+        synchronized (captureLock) {
+            frameRequested = false;
+        }
+
+        long start = clock.nanoTime();
+        if (triggerNanos != 0) {
+            stats.trigger.record(start - triggerNanos);
+            triggerNanos = 0;
+        }
+
+        listener.onStatusChanged("Identifying Image.");
+        List<ClassificationResult> results = frameClassifier.classify(jpeg, length);
+        long classified = clock.nanoTime();
+        stats.classify.record(classified - start);
+
+        publish(results, classified);
+    }
+
+    private void onPreRollFrame(byte[] jpeg, int length) {
+        int candidates;
+        synchronized (captureLock) {
+            preRoll.add(jpeg, length, clock.nanoTime());
+            if (!preRoll.isBurstComplete()) {
+                return;
+            }
+            candidates = preRoll.rankCandidates();
+            classifying = true;
+        }
+
+        // Slots are only written by add() on this thread, and a burst being classified is not
+        // preempted, so the candidates are read without holding the lock.
+        long start = clock.nanoTime();
+        if (triggerNanos != 0) {
+            stats.trigger.record(start - triggerNanos);
+            triggerNanos = 0;
+        }
+
+        listener.onStatusChanged("Identifying Image.");
+        List<ClassificationResult> best = null;
+        for (int rank = 0; rank < candidates; ++rank) {
+            int slot = preRoll.candidate(rank);
+            long classifyStart = clock.nanoTime();
+            List<ClassificationResult> results =
+                    frameClassifier.classify(preRoll.data(slot), preRoll.length(slot));
+            stats.classify.record(clock.nanoTime() - classifyStart);
+
+            if (null == best || topConfidence(results) > topConfidence(best)) {
+                best = results;
+            }
+            if (topConfidence(best) >= earlyExitConfidence) {
+                break;
+            }
+        }
+
+        synchronized (captureLock) {
+            // A preempted burst overlapping this one must not publish the same frames again.
+            preRoll.consumeCandidates();
+            preRoll.endBurst();
+            classifying = false;
+        }
+
+        if (null == best) {
+            best = Collections.emptyList();
+        }
+        publish(best, clock.nanoTime());
+    }
+
+    private void publish(List<ClassificationResult> results, long classified) {
+        listener.onResults(results);
+        stats.publish.record(clock.nanoTime() - classified);
+
+        synchronized (captureLock) {
+            scheduler.complete();
+            if (true == motionDetectionActive) {
+                listener.onStatusChanged("Reseting");
+            } else {
+                listener.onStatusChanged("Ready.");
+            }
+            if (!startNext()) {
+                busyIndicator.setBusy(false);
+            }
+        }
+    }
+
+    @Override
+    public void onTemperature(float celsius) {
+        double newTemperature = Math.round((celsius * 1.8 + 32) * 10.00) / 10.00;
+
+        if (temperature != newTemperature) {
+            temperature = newTemperature;
+            listener.onTemperatureChanged(newTemperature);
+        }
+    }
+
+    @Override
+    public void onPressure(float pressure) {
+        double newPressure = Math.round(pressure * 10.0) / 10.0;
+
+        if (this.pressure != newPressure) {
+            this.pressure = newPressure;
+            listener.onPressureChanged(newPressure);
+        }
+    }
+
+    @Override
+    public void onLocation(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        hasLocation = true;
+        listener.onLocationChanged(latitude, longitude);
+    }
+
+    private static float topConfidence(List<ClassificationResult> results) {
+        return results.isEmpty() ? 0 : results.get(0).confidence;
+    }
+
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Scheduler for this pipeline's captures, for setting deadlines and reading its counters.
+     */
+    public CaptureScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public boolean hasLocation() {
+        return hasLocation;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    public double getPressure() {
+        return pressure;
+    }
+}
@@ -0,0 +1,230 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Orders capture requests by priority class and runs one at a time. Manual requests go before
+ * motion requests, which go before periodic snapshots. The scheduler only keeps the books; its
+ * owner starts, preempts and completes the actual captures.
+ *
+ * Each class has a bounded queue that drops its oldest request on overflow. At most one periodic
+ * snapshot is queued at a time; more arriving while one waits are coalesced into it.
+ */
+
+public class CaptureScheduler {
+
+    public enum Priority {
+        MANUAL, MOTION, PERIODIC
+    }
+
+    private static class Request {
+        final Priority priority;
+        final long submitNanos;
+        boolean started;
+
+        Request(Priority priority, long submitNanos) {
+            this.priority = priority;
+            this.submitNanos = submitNanos;
+        }
+    }
+
+    public static class ClassStats {
+        private final Priority priority;
+        private long submitted;
+        private long completed;
+        private long preempted;
+        private long coalesced;
+        private long dropped;
+        private long deadlineMisses;
+        private long started;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        ClassStats(Priority priority) {
+            this.priority = priority;
+        }
+
+        ClassStats copy() {
+            ClassStats copy = new ClassStats(priority);
+            copy.submitted = submitted;
+            copy.completed = completed;
+            copy.preempted = preempted;
+            copy.coalesced = coalesced;
+            copy.dropped = dropped;
+            copy.deadlineMisses = deadlineMisses;
+            copy.started = started;
+            copy.totalWaitNanos = totalWaitNanos;
+            copy.maxWaitNanos = maxWaitNanos;
+            return copy;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getDeadlineMisses() {
+            return deadlineMisses;
+        }
+
+        public float getMeanWaitMillis() {
+            return (started == 0) ? 0 : totalWaitNanos / 1e6f / started;
+        }
+
+        public float getMaxWaitMillis() {
+            return maxWaitNanos / 1e6f;
+        }
+
+        @Override
+        public String toString() {
+            return priority.name().toLowerCase() + ": submitted=" + submitted + " completed=" + completed +
+                    " preempted=" + preempted + " coalesced=" + coalesced + " dropped=" + dropped +
+                    " missed=" + deadlineMisses + " wait mean=" + getMeanWaitMillis() + "ms max=" +
+                    getMaxWaitMillis() + "ms";
+        }
+    }
+
+    private final List<ArrayDeque<Request>> queues;
+    private final ClassStats[] stats;
+    private final long[] deadlineNanos;
+    private final int maxQueued;
+    private final Clock clock;
+    private Request running;
+
+    public CaptureScheduler(int maxQueued, Clock clock) {
+        int classes = Priority.values().length;
+        queues = new ArrayList<>(classes);
+        stats = new ClassStats[classes];
+        deadlineNanos = new long[classes];
+        for (Priority priority : Priority.values()) {
+            queues.add(new ArrayDeque<Request>());
+            stats[priority.ordinal()] = new ClassStats(priority);
+            deadlineNanos[priority.ordinal()] = Long.MAX_VALUE;
+        }
+        this.maxQueued = maxQueued;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets how long after submission a capture of this class should have completed.
+     */
+    public synchronized void setDeadline(Priority priority, long deadlineMillis) {
+        deadlineNanos[priority.ordinal()] = deadlineMillis * 1000000;
+    }
+
+    public synchronized void submit(Priority priority) {
+        ClassStats classStats = stats[priority.ordinal()];
+        ArrayDeque<Request> queue = queues.get(priority.ordinal());
+        classStats.submitted++;
+
+        if (priority == Priority.PERIODIC && !queue.isEmpty()) {
+            classStats.coalesced++;
+            return;
+        }
+        if (queue.size() >= maxQueued) {
+            queue.pollFirst();
+            classStats.dropped++;
+        }
+        queue.addLast(new Request(priority, clock.nanoTime()));
+    }
+
+    /**
+     * Starts the highest priority queued request if nothing is running. Returns its class, or
+     * null if nothing was started.
+     */
+    public synchronized Priority startNext() {
+        if (null != running) {
+            return null;
+        }
+        for (ArrayDeque<Request> queue : queues) {
+            Request request = queue.pollFirst();
+            if (null != request) {
+                if (!request.started) {
+                    // Counted once, so a preempted request's wait is not counted twice.
+                    request.started = true;
+                    ClassStats classStats = stats[request.priority.ordinal()];
+                    long waitNanos = clock.nanoTime() - request.submitNanos;
+                    classStats.started++;
+                    classStats.totalWaitNanos += waitNanos;
+                    classStats.maxWaitNanos = Math.max(classStats.maxWaitNanos, waitNanos);
+                }
+                running = request;
+                return request.priority;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a request is waiting that outranks the running one.
+     */
+    public synchronized boolean shouldPreempt() {
+        if (null == running) {
+            return false;
+        }
+        for (int i = 0; i < running.priority.ordinal(); ++i) {
+            if (!queues.get(i).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Puts the running request back at the head of its queue so it runs again next in its class.
+     */
+    public synchronized void preempt() {
+        if (null != running) {
+            stats[running.priority.ordinal()].preempted++;
+            queues.get(running.priority.ordinal()).addFirst(running);
+            running = null;
+        }
+    }
+
+    public synchronized void complete() {
+        if (null == running) {
+            return;
+        }
+        ClassStats classStats = stats[running.priority.ordinal()];
+        classStats.completed++;
+        if (clock.nanoTime() - running.submitNanos > deadlineNanos[running.priority.ordinal()]) {
+            classStats.deadlineMisses++;
+        }
+        running = null;
+    }
+
+    public synchronized Priority getRunning() {
+        return (null == running) ? null : running.priority;
+    }
+
+    /**
+     * Submission time of the running request; a preempted request keeps its original time.
+     */
+    public synchronized long getRunningSubmitNanos() {
+        return (null == running) ? 0 : running.submitNanos;
+    }
+
+    /**
+     * Returns a snapshot of the counters for one class.
+     */
+    public synchronized ClassStats getStats(Priority priority) {
+        return stats[priority.ordinal()].copy();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (ClassStats classStats : stats) {
+            if (builder.length() > 0) {
+                builder.append("\n");
+            }
+            builder.append(classStats);
+        }
+        return builder.toString();
+    }
+}
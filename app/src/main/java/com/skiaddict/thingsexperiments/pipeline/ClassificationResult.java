@@ -0,0 +1,18 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+/**
+ * One label and its confidence for a classified frame. Kept free of Android so the pipeline
+ * and replay harness run on a desktop JVM.
+ */
+
+public class ClassificationResult {
+    public ClassificationResult (int labelId, String label, float confidence) {
+        this.labelId = labelId;
+        this.label = label;
+        this.confidence = confidence;
+    }
+
+    public int labelId;
+    public String label;
+    public float confidence;
+}
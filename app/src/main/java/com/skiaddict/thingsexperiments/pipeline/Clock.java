@@ -0,0 +1,17 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+/**
+ * Source of the monotonic time used for capture scheduling, the pre-roll window and pipeline
+ * timings, so a replay can substitute the recorded times.
+ */
+
+public interface Clock {
+    long nanoTime();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+}
@@ -0,0 +1,8 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+
+import java.util.List;
+
+public interface FrameClassifier {
+    List<ClassificationResult> classify(byte[] jpeg, int length);
+}
@@ -0,0 +1,159 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+/**
+ * Fixed-size ring of pre-allocated JPEG slots holding the most recent frames from a low-rate
+ * continuous capture. Memory use is fixed at construction: frames larger than a slot are
+ * dropped rather than grown into.
+ *
+ * After {@link #trigger(int, long)} the ring collects a number of post-trigger frames and then
+ * offers the pre-roll and post-trigger frames as candidates, ordered best first. Without
+ * decoding, a frame's JPEG size is a cheap proxy for how much it differs from the empty scene,
+ * so candidates are ranked by how far their size is from the pre-trigger baseline.
+ *
+ * Frames offered by a burst that was classified are marked consumed and are not offered again,
+ * so a burst that was preempted and runs later only sees frames nobody has classified yet.
+ */
+
+public class FrameRing {
+
+    private static final float BASELINE_WEIGHT = 0.1f;
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final boolean[] consumed;
+    private final int[] candidates;
+    private final long preRollNanos;
+
+    private int next;
+    private int droppedFrames;
+    private float baselineLength;
+
+    private boolean triggered;
+    private long triggerNanos;
+    private int postTriggerWanted;
+    private int postTriggerFrames;
+    private int candidateCount;
+
+    public FrameRing(int memoryBudgetBytes, int slotBytes, long preRollNanos) {
+        int slotCount = Math.max(2, memoryBudgetBytes / slotBytes);
+        slots = new byte[slotCount][slotBytes];
+        lengths = new int[slotCount];
+        timestamps = new long[slotCount];
+        consumed = new boolean[slotCount];
+        candidates = new int[slotCount];
+        this.preRollNanos = preRollNanos;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Copies a frame into the oldest slot. Returns false if it does not fit a slot.
+     */
+    public boolean add(byte[] jpeg, int length, long timestampNanos) {
+        if (length > slots[next].length) {
+            droppedFrames++;
+            return false;
+        }
+        System.arraycopy(jpeg, 0, slots[next], 0, length);
+        lengths[next] = length;
+        timestamps[next] = timestampNanos;
+        consumed[next] = false;
+        next = (next + 1) % slots.length;
+
+        if (triggered) {
+            postTriggerFrames++;
+        } else {
+            baselineLength = (baselineLength == 0) ? length :
+                    baselineLength * (1 - BASELINE_WEIGHT) + length * BASELINE_WEIGHT;
+        }
+        return true;
+    }
+
+    /**
+     * Starts a burst: the frames from the last pre-roll window plus the next
+     * {@code postTriggerFrames} frames. The post-trigger count is capped at half the ring so the
+     * pre-roll frames are not overwritten.
+     */
+    public void trigger(int postTriggerFrames, long nowNanos) {
+        triggered = true;
+        triggerNanos = nowNanos;
+        postTriggerWanted = Math.min(postTriggerFrames, slots.length / 2);
+        this.postTriggerFrames = 0;
+        candidateCount = 0;
+    }
+
+    public boolean isTriggered() {
+        return triggered;
+    }
+
+    public boolean isBurstComplete() {
+        return triggered && postTriggerFrames >= postTriggerWanted;
+    }
+
+    /**
+     * Ranks the frames of the completed burst. Returns the number of candidates; use
+     * {@link #candidate(int)} to walk them best first.
+     */
+    public int rankCandidates() {
+        candidateCount = 0;
+        long since = triggerNanos - preRollNanos;
+        for (int slot = 0; slot < slots.length; ++slot) {
+            if (lengths[slot] > 0 && !consumed[slot] && timestamps[slot] >= since) {
+                // Insertion sort by descending score; the ring is small.
+                float score = score(slot);
+                int i = candidateCount++;
+                while (i > 0 && score(candidates[i - 1]) < score) {
+                    candidates[i] = candidates[i - 1];
+                    i--;
+                }
+                candidates[i] = slot;
+            }
+        }
+        return candidateCount;
+    }
+
+    public int candidate(int rank) {
+        return candidates[rank];
+    }
+
+    public byte[] data(int slot) {
+        return slots[slot];
+    }
+
+    public int length(int slot) {
+        return lengths[slot];
+    }
+
+    public long timestamp(int slot) {
+        return timestamps[slot];
+    }
+
+    /**
+     * Marks the ranked candidates of the current burst as classified, so no later burst
+     * offers them again.
+     */
+    public void consumeCandidates() {
+        for (int rank = 0; rank < candidateCount; ++rank) {
+            consumed[candidates[rank]] = true;
+        }
+    }
+
+    /**
+     * Ends the burst; the ring goes back to collecting pre-roll.
+     */
+    public void endBurst() {
+        triggered = false;
+        candidateCount = 0;
+    }
+
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    private float score(int slot) {
+        return Math.abs(lengths[slot] - baselineLength);
+    }
+}
@@ -0,0 +1,10 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+/**
+ * Asked for a frame when motion starts; the frame arrives later through
+ * {@link PipelineInput#onFrame(byte[], int)}.
+ */
+
+public interface FrameSource {
+    void requestFrame();
+}
@@ -0,0 +1,16 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+/**
+ * Everything the outside world feeds into the capture pipeline. Implemented by the pipeline
+ * itself and by anything that wants to sit in front of it, such as the replay recorder.
+ */
+
+public interface PipelineInput {
+    void onMotion(boolean active);
+    void onManualTrigger();
+    void onPeriodicSnapshot();
+    void onFrame(byte[] jpeg, int length);
+    void onTemperature(float celsius);
+    void onPressure(float pressure);
+    void onLocation(double latitude, double longitude);
+}
@@ -0,0 +1,54 @@
+package com.skiaddict.thingsexperiments.pipeline;
+
+/**
+ * Per-stage latency of the capture pipeline.
+ */
+
+public class PipelineStats {
+
+    public static class Stage {
+        private final String name;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized float getMeanMillis() {
+            return (count == 0) ? 0 : totalNanos / 1e6f / count;
+        }
+
+        public synchronized float getMaxMillis() {
+            return maxNanos / 1e6f;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": n=" + getCount() + " mean=" + getMeanMillis() + "ms max=" + getMaxMillis() + "ms";
+        }
+    }
+
+    // Motion edge until the frame arrives from the camera.
+    public final Stage trigger = new Stage("trigger");
+    // Decode, crop and inference.
+    public final Stage classify = new Stage("classify");
+    // Result delivery to the listener (UI, journaling, indexes).
+    public final Stage publish = new Stage("publish");
+
+    @Override
+    public String toString() {
+        return trigger + "\n" + classify + "\n" + publish;
+    }
+}
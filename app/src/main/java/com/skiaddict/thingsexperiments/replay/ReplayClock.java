@@ -0,0 +1,22 @@
+package com.skiaddict.thingsexperiments.replay;
+
+import com.skiaddict.thingsexperiments.pipeline.Clock;
+
+/**
+ * Clock that only moves when {@link ReplayDriver} reaches the next recorded event, so the
+ * pipeline sees the recorded times however fast the file is replayed.
+ */
+
+public class ReplayClock implements Clock {
+
+    private volatile long nanos;
+
+    @Override
+    public long nanoTime() {
+        return nanos;
+    }
+
+    void set(long nanos) {
+        this.nanos = nanos;
+    }
+}
@@ -0,0 +1,135 @@
+package com.skiaddict.thingsexperiments.replay;
+
+import com.skiaddict.thingsexperiments.pipeline.PipelineInput;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Feeds a file written by {@link ReplayRecorder} into a {@link PipelineInput}, either with the
+ * original spacing between events or as fast as the pipeline accepts them. Events are
+ * delivered one at a time on the calling thread, and a {@link ReplayClock} given to the
+ * pipeline is set to each event's recorded time before it is delivered, so a replay is
+ * deterministic at any speed.
+ */
+
+public class ReplayDriver {
+
+    public static class Report {
+        Report(int events, int frames, long elapsedNanos) {
+            this.events = events;
+            this.frames = frames;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public final int events;
+        public final int frames;
+        public final long elapsedNanos;
+
+        public float getFramesPerSecond() {
+            return (elapsedNanos == 0) ? 0 : frames * 1e9f / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return events + " events, " + frames + " frames in " + elapsedNanos / 1e6f + "ms (" +
+                    getFramesPerSecond() + " frames/sec)";
+        }
+    }
+
+    private final File file;
+    private final PipelineInput input;
+    private final ReplayClock clock;
+
+    /**
+     * @param clock set to the recorded time of each event, or null to leave the pipeline on its
+     *              own clock.
+     */
+    public ReplayDriver(File file, PipelineInput input, ReplayClock clock) {
+        this.file = file;
+        this.input = input;
+        this.clock = clock;
+    }
+
+    public Report run(boolean realtime) throws IOException, InterruptedException {
+        int events = 0;
+        int frames = 0;
+        byte[] frame = new byte[0];
+        long start = System.nanoTime();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != ReplayRecorder.MAGIC) {
+                throw new IOException("Not a replay file: " + file);
+            }
+            int version = in.readInt();
+            if (version != ReplayRecorder.VERSION) {
+                throw new IOException("Unsupported replay file version " + version + ": " + file);
+            }
+
+            long firstTimestamp = -1;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long timestamp = in.readLong();
+                if (firstTimestamp < 0) {
+                    firstTimestamp = timestamp;
+                }
+                if (realtime) {
+                    long waitNanos = (timestamp - firstTimestamp) - (System.nanoTime() - start);
+                    if (waitNanos > 0) {
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    }
+                }
+                if (null != clock) {
+                    clock.set(timestamp);
+                }
+
+                switch (type) {
+                    case ReplayRecorder.TYPE_MOTION:
+                        input.onMotion(in.readBoolean());
+                        break;
+                    case ReplayRecorder.TYPE_MANUAL:
+                        input.onManualTrigger();
+                        break;
+                    case ReplayRecorder.TYPE_PERIODIC:
+                        input.onPeriodicSnapshot();
+                        break;
+                    case ReplayRecorder.TYPE_FRAME:
+                        int length = in.readInt();
+                        if (frame.length < length) {
+                            frame = new byte[length];
+                        }
+                        in.readFully(frame, 0, length);
+                        input.onFrame(frame, length);
+                        frames++;
+                        break;
+                    case ReplayRecorder.TYPE_TEMPERATURE:
+                        input.onTemperature(in.readFloat());
+                        break;
+                    case ReplayRecorder.TYPE_PRESSURE:
+                        input.onPressure(in.readFloat());
+                        break;
+                    case ReplayRecorder.TYPE_LOCATION:
+                        double latitude = in.readDouble();
+                        input.onLocation(latitude, in.readDouble());
+                        break;
+                    default:
+                        throw new IOException("Unknown replay event type " + type);
+                }
+                events++;
+            }
+        } catch (EOFException e) {
+            // Recording was cut off mid-event; replay what was complete.
+        }
+
+        return new Report(events, frames, System.nanoTime() - start);
+    }
+}
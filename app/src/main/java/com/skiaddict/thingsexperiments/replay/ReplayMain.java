@@ -0,0 +1,174 @@
+package com.skiaddict.thingsexperiments.replay;
+
+import com.skiaddict.thingsexperiments.pipeline.BusyIndicator;
+import com.skiaddict.thingsexperiments.pipeline.CapturePipeline;
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+import com.skiaddict.thingsexperiments.pipeline.Clock;
+import com.skiaddict.thingsexperiments.pipeline.FrameClassifier;
+import com.skiaddict.thingsexperiments.pipeline.FrameRing;
+import com.skiaddict.thingsexperiments.pipeline.FrameSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Headless replay of a recorded capture session on a desktop JVM. The camera, motion sensor
+ * and busy LED are replaced by fakes and inference by a deterministic checksum classifier,
+ * so the run measures the pipeline itself and any change in its behaviour shows up as a diff
+ * against a golden result file. Unless replayed in real time, the pipeline runs on the
+ * recorded times, so its schedule does not depend on how fast this machine is.
+ *
+ * Usage: ReplayMain &lt;replay file&gt; [--realtime] [--pre-roll] [--out results.txt] [--golden golden.txt]
+ * or, from the project root, ./gradlew :app:replay -PreplayArgs="&lt;replay file&gt; ..."
+ *
+ * A session recorded with pre-roll enabled must be replayed with --pre-roll, which sets up
+ * the frame ring the same way the device does.
+ */
+
+public class ReplayMain {
+
+    private static final int MAX_REPORTED_DIFFS = 10;
+    // Label space of the bundled model; ImageClassifier itself needs Android.
+    private static final int NUM_CLASSES = 1008;
+    // Pre-roll settings of MainActivity.
+    private static final long PRE_ROLL_WINDOW_MS = 4 * 1000;
+    private static final int PRE_ROLL_MEMORY_BUDGET_BYTES = 2 * 1024 * 1024;
+    private static final int PRE_ROLL_SLOT_BYTES = 128 * 1024;
+    private static final int POST_TRIGGER_FRAMES = 4;
+    private static final float PRE_ROLL_EARLY_EXIT_CONFIDENCE = 0.8f;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayMain <replay file> [--realtime] [--pre-roll] [--out results.txt] " +
+                    "[--golden golden.txt]");
+            System.exit(2);
+        }
+
+        File replayFile = new File(args[0]);
+        boolean realtime = false;
+        boolean preRoll = false;
+        File outFile = null;
+        File goldenFile = null;
+        for (int i = 1; i < args.length; ++i) {
+            if ("--realtime".equals(args[i])) {
+                realtime = true;
+            } else if ("--pre-roll".equals(args[i])) {
+                preRoll = true;
+            } else if ("--out".equals(args[i]) && i + 1 < args.length) {
+                outFile = new File(args[++i]);
+            } else if ("--golden".equals(args[i]) && i + 1 < args.length) {
+                goldenFile = new File(args[++i]);
+            }
+        }
+
+        final List<String> results = new ArrayList<>();
+        ReplayClock clock = realtime ? null : new ReplayClock();
+
+        CapturePipeline pipeline = new CapturePipeline(
+                new FrameSource() {
+                    @Override
+                    public void requestFrame() {
+                        // The recorded frame follows in the replay file.
+                    }
+                },
+                new ChecksumFrameClassifier(),
+                new BusyIndicator() {
+                    @Override
+                    public void setBusy(boolean isBusy) {
+                    }
+                },
+                new CapturePipeline.Listener() {
+                    @Override
+                    public void onStatusChanged(String status) {
+                    }
+
+                    @Override
+                    public void onResults(List<ClassificationResult> frameResults) {
+                        StringBuilder line = new StringBuilder().append(results.size());
+                        for (ClassificationResult result : frameResults) {
+                            line.append(' ').append(result.labelId).append(':').append(result.confidence);
+                        }
+                        results.add(line.toString());
+                    }
+
+                    @Override
+                    public void onTemperatureChanged(double temperature) {
+                    }
+
+                    @Override
+                    public void onPressureChanged(double pressure) {
+                    }
+
+                    @Override
+                    public void onLocationChanged(double latitude, double longitude) {
+                    }
+                }, (null != clock) ? clock : Clock.SYSTEM);
+        if (preRoll) {
+            pipeline.setPreRoll(
+                    new FrameRing(PRE_ROLL_MEMORY_BUDGET_BYTES, PRE_ROLL_SLOT_BYTES, PRE_ROLL_WINDOW_MS * 1000000),
+                    POST_TRIGGER_FRAMES, PRE_ROLL_EARLY_EXIT_CONFIDENCE);
+        }
+        pipeline.start();
+
+        ReplayDriver.Report report = new ReplayDriver(replayFile, pipeline, clock).run(realtime);
+        System.out.println(report);
+        System.out.println(pipeline.getStats());
+        System.out.println(pipeline.getScheduler());
+
+        if (null != outFile) {
+            try (PrintWriter writer = new PrintWriter(outFile, "UTF-8")) {
+                for (String line : results) {
+                    writer.println(line);
+                }
+            }
+        }
+
+        if (null != goldenFile) {
+            int diffs = diff(Files.readAllLines(goldenFile.toPath(), StandardCharsets.UTF_8), results);
+            System.out.println(diffs + " result differences against " + goldenFile);
+            System.exit(diffs == 0 ? 0 : 1);
+        }
+    }
+
+    private static int diff(List<String> golden, List<String> actual) {
+        int diffs = 0;
+        for (int i = 0; i < Math.max(golden.size(), actual.size()); ++i) {
+            String expected = (i < golden.size()) ? golden.get(i) : "<missing>";
+            String got = (i < actual.size()) ? actual.get(i) : "<missing>";
+            if (!expected.equals(got)) {
+                if (diffs < MAX_REPORTED_DIFFS) {
+                    System.out.println("- " + expected);
+                    System.out.println("+ " + got);
+                }
+                diffs++;
+            }
+        }
+        return diffs;
+    }
+
+    /**
+     * Stands in for the TensorFlow model off-device: one result per frame, derived from the
+     * frame bytes, so identical input always yields identical output.
+     */
+    private static class ChecksumFrameClassifier implements FrameClassifier {
+        private final CRC32 crc = new CRC32();
+
+        @Override
+        public List<ClassificationResult> classify(byte[] jpeg, int length) {
+            crc.reset();
+            crc.update(jpeg, 0, length);
+            long checksum = crc.getValue();
+            int labelId = (int) (checksum % NUM_CLASSES);
+            float confidence = ((checksum >>> 16) & 0xFF) / 255f;
+            return Collections.singletonList(
+                    new ClassificationResult(labelId, "label" + labelId, confidence));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.skiaddict.thingsexperiments.replay;
+
+import com.skiaddict.thingsexperiments.pipeline.PipelineInput;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Sits in front of a {@link PipelineInput}, writing every input with its arrival time to a
+ * replay file before passing it on. Write errors stop the recording but never the pipeline.
+ */
+
+public class ReplayRecorder implements PipelineInput, AutoCloseable {
+
+    static final int MAGIC = 0x54585250; // "TXRP"
+    // 2 added TYPE_MANUAL and TYPE_PERIODIC.
+    static final int VERSION = 2;
+
+    static final byte TYPE_MOTION = 1;
+    static final byte TYPE_FRAME = 2;
+    static final byte TYPE_TEMPERATURE = 3;
+    static final byte TYPE_PRESSURE = 4;
+    static final byte TYPE_LOCATION = 5;
+    static final byte TYPE_MANUAL = 6;
+    static final byte TYPE_PERIODIC = 7;
+
+    private final PipelineInput delegate;
+    private DataOutputStream out;
+
+    public ReplayRecorder(File file, PipelineInput delegate) throws IOException {
+        this.delegate = delegate;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    @Override
+    public void onMotion(boolean active) {
+        synchronized (this) {
+            try {
+                if (begin(TYPE_MOTION)) {
+                    out.writeBoolean(active);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onMotion(active);
+    }
+
+    @Override
+    public void onManualTrigger() {
+        synchronized (this) {
+            try {
+                begin(TYPE_MANUAL);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onManualTrigger();
+    }
+
+    @Override
+    public void onPeriodicSnapshot() {
+        synchronized (this) {
+            try {
+                begin(TYPE_PERIODIC);
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onPeriodicSnapshot();
+    }
+
+    @Override
+    public void onFrame(byte[] jpeg, int length) {
+        synchronized (this) {
+            try {
+                if (begin(TYPE_FRAME)) {
+                    out.writeInt(length);
+                    out.write(jpeg, 0, length);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onFrame(jpeg, length);
+    }
+
+    @Override
+    public void onTemperature(float celsius) {
+        synchronized (this) {
+            try {
+                if (begin(TYPE_TEMPERATURE)) {
+                    out.writeFloat(celsius);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onTemperature(celsius);
+    }
+
+    @Override
+    public void onPressure(float pressure) {
+        synchronized (this) {
+            try {
+                if (begin(TYPE_PRESSURE)) {
+                    out.writeFloat(pressure);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onPressure(pressure);
+    }
+
+    @Override
+    public void onLocation(double latitude, double longitude) {
+        synchronized (this) {
+            try {
+                if (begin(TYPE_LOCATION)) {
+                    out.writeDouble(latitude);
+                    out.writeDouble(longitude);
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        delegate.onLocation(latitude, longitude);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (null != out) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+            }
+        }
+    }
+
+    private boolean begin(byte type) throws IOException {
+        if (null == out) {
+            return false;
+        }
+        out.writeByte(type);
+        out.writeLong(System.nanoTime());
+        return true;
+    }
+
+    private void fail() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Already failing; nothing more to do.
+        }
+    }
+}
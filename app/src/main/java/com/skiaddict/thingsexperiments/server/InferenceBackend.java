@@ -0,0 +1,24 @@
+package com.skiaddict.thingsexperiments.server;
+
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+
+import java.util.List;
+
+/**
+ * The classifier behind an {@link InferenceServer}. Both methods are called from the server's
+ * batching thread only. A backend sharing a classifier with other callers makes them wait
+ * for each server batch, so it should have a context of its own.
+ */
+
+public interface InferenceBackend {
+
+    /**
+     * Decodes a JPEG into a preprocessed input tensor, or returns null if it cannot be decoded.
+     */
+    float[] preprocess(byte[] jpeg);
+
+    /**
+     * Classifies the preprocessed images together, returning results in the same order.
+     */
+    List<List<ClassificationResult>> classify(List<float[]> inputs);
+}
@@ -0,0 +1,148 @@
+package com.skiaddict.thingsexperiments.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Drives an {@link InferenceServer} with a number of concurrent clients, each sending the same
+ * request in a closed loop, and reports throughput and latency percentiles as seen by the
+ * clients. Meant for loopback, so the numbers are the server's and not the network's.
+ *
+ * Each client keeps up to a pipeline depth of requests outstanding, sending the next one as
+ * each response arrives. A depth of one waits for every response before sending again; a
+ * deeper pipeline lets the server batch one client's requests together.
+ */
+
+public class InferenceLoadGenerator {
+
+    public static class Report {
+        public int clients;
+        public int depth;
+        public int requests;
+        public int ok;
+        public int rejected;
+        public int failed;
+        public long elapsedMillis;
+        public float throughput;
+        public float p50Millis;
+        public float p95Millis;
+        public float p99Millis;
+        public float maxMillis;
+
+        @Override
+        public String toString() {
+            return "clients=" + clients + " depth=" + depth + " requests=" + requests + " ok=" + ok + " rejected=" + rejected +
+                    " failed=" + failed + " " + throughput + " req/s latency p50=" + p50Millis + "ms p95=" +
+                    p95Millis + "ms p99=" + p99Millis + "ms max=" + maxMillis + "ms";
+        }
+    }
+
+    private InferenceLoadGenerator() {
+    }
+
+    public static Report run(InetSocketAddress address, int clients, int requestsPerClient, byte type,
+                             byte[] payload) throws InterruptedException {
+        return run(address, clients, requestsPerClient, 1, type, payload);
+    }
+
+    /**
+     * @param depth requests each client keeps outstanding.
+     */
+    public static Report run(final InetSocketAddress address, int clients, final int requestsPerClient,
+                             final int depth, final byte type, final byte[] payload) throws InterruptedException {
+        final long[][] latencies = new long[clients][];
+        final int[][] statuses = new int[clients][];
+        Thread[] threads = new Thread[clients];
+
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; ++c) {
+            final int client = c;
+            latencies[client] = new long[requestsPerClient];
+            statuses[client] = new int[requestsPerClient];
+            Arrays.fill(statuses[client], -1);
+            threads[client] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runClient(address, requestsPerClient, depth, type, payload, latencies[client], statuses[client]);
+                }
+            }, "InferenceLoad " + client);
+            threads[client].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        Report report = new Report();
+        report.clients = clients;
+        report.depth = depth;
+        long[] okLatencies = new long[clients * requestsPerClient];
+        for (int c = 0; c < clients; ++c) {
+            for (int i = 0; i < requestsPerClient; ++i) {
+                report.requests++;
+                if (statuses[c][i] == InferenceProtocol.STATUS_OK) {
+                    okLatencies[report.ok++] = latencies[c][i];
+                } else if (statuses[c][i] == InferenceProtocol.STATUS_QUOTA_EXCEEDED) {
+                    report.rejected++;
+                } else {
+                    report.failed++;
+                }
+            }
+        }
+        Arrays.sort(okLatencies, 0, report.ok);
+        report.elapsedMillis = elapsedNanos / 1000000;
+        report.throughput = report.ok / (elapsedNanos / 1e9f);
+        if (report.ok > 0) {
+            report.p50Millis = percentile(okLatencies, report.ok, 0.50f);
+            report.p95Millis = percentile(okLatencies, report.ok, 0.95f);
+            report.p99Millis = percentile(okLatencies, report.ok, 0.99f);
+            report.maxMillis = okLatencies[report.ok - 1] / 1e6f;
+        }
+        return report;
+    }
+
+    private static void runClient(InetSocketAddress address, int requests, int depth, byte type, byte[] payload,
+                                  long[] latencies, int[] statuses) {
+        long[] starts = new long[requests];
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(address);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            int sent = 0;
+            for (int received = 0; received < requests; ++received) {
+                // Top up the pipeline; responses are small, so writing ahead cannot stall them.
+                while (sent < requests && sent - received < depth) {
+                    ByteBuffer request = InferenceProtocol.encodeRequest(sent, type, payload);
+                    starts[sent] = System.nanoTime();
+                    out.write(request.array(), 0, request.limit());
+                    sent++;
+                }
+                out.flush();
+
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                // Rejections are answered straight away, so responses can come back out of order.
+                int requestId = ByteBuffer.wrap(body).getInt();
+                if (requestId < 0 || requestId >= sent) {
+                    throw new IOException("Response to unknown request " + requestId);
+                }
+                latencies[requestId] = System.nanoTime() - starts[requestId];
+                statuses[requestId] = body[4];
+            }
+        } catch (IOException e) {
+            // Requests not completed keep status -1 and count as failed.
+        }
+    }
+
+    private static float percentile(long[] sorted, int count, float fraction) {
+        int index = Math.min(count - 1, (int) Math.ceil(fraction * count) - 1);
+        return sorted[Math.max(0, index)] / 1e6f;
+    }
+}
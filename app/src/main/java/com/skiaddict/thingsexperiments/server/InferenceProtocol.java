@@ -0,0 +1,94 @@
+package com.skiaddict.thingsexperiments.server;
+
+import com.skiaddict.thingsexperiments.ImageClassifier;
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of the inference server. Every message is a frame: a big-endian int length
+ * followed by that many bytes.
+ *
+ * Request:  int requestId, byte type, then a JPEG (TYPE_JPEG) or
+ *           {@link ImageClassifier#INPUT_SIZE} big-endian floats (TYPE_TENSOR).
+ * Response: int requestId, byte status, byte resultCount, then per result int labelId and
+ *           float confidence, best first.
+ */
+
+public class InferenceProtocol {
+
+    public static final byte TYPE_JPEG = 1;
+    public static final byte TYPE_TENSOR = 2;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_QUOTA_EXCEEDED = 1;
+    public static final byte STATUS_BAD_REQUEST = 2;
+    public static final byte STATUS_ERROR = 3;
+
+    public static final int TENSOR_BYTES = ImageClassifier.INPUT_SIZE * 4;
+    public static final int MAX_JPEG_BYTES = 2 * 1024 * 1024;
+    // Largest request frame the server accepts.
+    public static final int MAX_REQUEST_BYTES = 5 + Math.max(TENSOR_BYTES, MAX_JPEG_BYTES);
+
+    private static final int RESULT_BYTES = 8;
+
+    private InferenceProtocol() {
+    }
+
+    public static ByteBuffer encodeRequest(int requestId, byte type, byte[] data) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 5 + data.length);
+        frame.putInt(5 + data.length);
+        frame.putInt(requestId);
+        frame.put(type);
+        frame.put(data);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes a preprocessed image as a TYPE_TENSOR payload.
+     */
+    public static byte[] encodeTensor(float[] input) {
+        ByteBuffer buffer = ByteBuffer.allocate(input.length * 4);
+        buffer.asFloatBuffer().put(input);
+        return buffer.array();
+    }
+
+    public static float[] decodeTensor(byte[] payload) {
+        float[] input = new float[payload.length / 4];
+        ByteBuffer.wrap(payload).asFloatBuffer().get(input);
+        return input;
+    }
+
+    public static ByteBuffer encodeResponse(int requestId, byte status,
+                                            List<ClassificationResult> results) {
+        int count = (null == results) ? 0 : results.size();
+        ByteBuffer frame = ByteBuffer.allocate(4 + 6 + count * RESULT_BYTES);
+        frame.putInt(6 + count * RESULT_BYTES);
+        frame.putInt(requestId);
+        frame.put(status);
+        frame.put((byte) count);
+        for (int i = 0; i < count; ++i) {
+            frame.putInt(results.get(i).labelId);
+            frame.putFloat(results.get(i).confidence);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Decodes the results of a response frame body (without its length). Labels are left null;
+     * clients map ids with their own copy of the labels file.
+     */
+    public static List<ClassificationResult> decodeResults(ByteBuffer body) {
+        body.position(6);
+        int count = body.get(5) & 0xFF;
+        ArrayList<ClassificationResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            results.add(new ClassificationResult(body.getInt(), null, body.getFloat()));
+        }
+        return results;
+    }
+}
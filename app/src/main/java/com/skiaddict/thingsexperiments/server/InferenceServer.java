@@ -0,0 +1,426 @@
+package com.skiaddict.thingsexperiments.server;
+
+import com.skiaddict.thingsexperiments.pipeline.ClassificationResult;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves classification requests from other devices over TCP using the
+ * {@link InferenceProtocol} framing.
+ *
+ * One selector thread does all socket I/O without blocking. Complete requests go to a batching
+ * thread, which waits up to the batching window after the first request for more (from any
+ * client) and runs them through the backend together. Each client may have a limited number
+ * of requests queued or running; requests beyond that are answered with
+ * {@link InferenceProtocol#STATUS_QUOTA_EXCEEDED} straight away. A client that does not read
+ * its responses is disconnected once a bounded number of them are waiting to be sent.
+ *
+ * Connections beyond a maximum number of clients are closed as soon as they are accepted. With
+ * the per-client limits this bounds the request frames the server buffers as a whole, to about
+ * clients * (requests in flight + 1) * {@link InferenceProtocol#MAX_REQUEST_BYTES}.
+ */
+
+public class InferenceServer {
+
+    // Responses, including immediate rejections, waiting to be written to one client.
+    private static final int MAX_QUEUED_RESPONSES = 64;
+
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        ByteBuffer frame;
+        final BlockingQueue<ByteBuffer> output = new ArrayBlockingQueue<>(MAX_QUEUED_RESPONSES);
+        final AtomicInteger inFlight = new AtomicInteger();
+        // Set when output overflowed; the selector thread then closes the connection.
+        volatile boolean overflowed;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Request {
+        final Client client;
+        final int requestId;
+        final byte type;
+        final byte[] data;
+        final long receivedNanos;
+        boolean answered;
+
+        Request(Client client, int requestId, byte type, byte[] data, long receivedNanos) {
+            this.client = client;
+            this.requestId = requestId;
+            this.type = type;
+            this.data = data;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private final InferenceBackend backend;
+    private final int maxBatchSize;
+    private final long batchWindowNanos;
+    private final int maxInFlightPerClient;
+    private final int maxClients;
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    // Clients with responses waiting for the selector thread to enable writes.
+    private final ConcurrentLinkedQueue<Client> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private Thread batchThread;
+    private volatile boolean running;
+    // Connected clients; only touched on the selector thread.
+    private int clients;
+
+    private volatile long served;
+    private volatile long rejected;
+    private final AtomicLong badRequests = new AtomicLong();
+    private volatile long disconnected;
+    private volatile long refused;
+    private volatile long failedBatches;
+    private volatile long batches;
+    private volatile long batchedRequests;
+    private volatile int maxBatch;
+    private volatile long totalServiceNanos;
+    private volatile long maxServiceNanos;
+
+    /**
+     * @param batchWindowMillis how long the first request of a batch waits for others.
+     * @param maxInFlightPerClient requests a client may have queued or running at once.
+     * @param maxClients clients that may be connected at once.
+     */
+    public InferenceServer(InferenceBackend backend, int maxBatchSize, long batchWindowMillis,
+                           int maxInFlightPerClient, int maxClients) {
+        this.backend = backend;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindowNanos = batchWindowMillis * 1000000;
+        this.maxInFlightPerClient = maxInFlightPerClient;
+        this.maxClients = maxClients;
+    }
+
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "InferenceServer I/O");
+        batchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                batchLoop();
+            }
+        }, "InferenceServer Batcher");
+        selectorThread.start();
+        batchThread.start();
+    }
+
+    /**
+     * Port actually bound, for servers started on port 0.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        batchThread.interrupt();
+        selectorThread.join();
+        batchThread.join();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+
+                Client pending;
+                while (null != (pending = pendingWrites.poll())) {
+                    SelectionKey key = pending.channel.keyFor(selector);
+                    if (null == key || !key.isValid()) {
+                        continue;
+                    }
+                    if (pending.overflowed) {
+                        disconnected++;
+                        close(key);
+                    } else {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Client client = (Client) key.attachment();
+                            if (key.isReadable()) {
+                                read(key, client);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key, client);
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            running = false;
+            batchThread.interrupt();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (null == channel) {
+            return;
+        }
+        if (clients >= maxClients) {
+            refused++;
+            channel.close();
+            return;
+        }
+        clients++;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+    }
+
+    private void read(SelectionKey key, Client client) throws IOException {
+        while (true) {
+            if (null == client.frame) {
+                if (client.channel.read(client.header) < 0) {
+                    close(key);
+                    return;
+                }
+                if (client.header.hasRemaining()) {
+                    return;
+                }
+                int length = client.header.getInt(0);
+                client.header.clear();
+                if (length < 5 || length > InferenceProtocol.MAX_REQUEST_BYTES) {
+                    // The stream cannot be resynchronised after a bad length.
+                    close(key);
+                    return;
+                }
+                client.frame = ByteBuffer.allocate(length);
+            }
+
+            if (client.channel.read(client.frame) < 0) {
+                close(key);
+                return;
+            }
+            if (client.frame.hasRemaining()) {
+                return;
+            }
+            ByteBuffer frame = client.frame;
+            client.frame = null;
+            onRequest(client, frame);
+        }
+    }
+
+    private void onRequest(Client client, ByteBuffer frame) {
+        frame.flip();
+        int requestId = frame.getInt();
+        byte type = frame.get();
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+
+        if ((type == InferenceProtocol.TYPE_TENSOR && data.length != InferenceProtocol.TENSOR_BYTES) ||
+                (type != InferenceProtocol.TYPE_TENSOR && type != InferenceProtocol.TYPE_JPEG)) {
+            badRequests.incrementAndGet();
+            respond(client, InferenceProtocol.encodeResponse(requestId, InferenceProtocol.STATUS_BAD_REQUEST, null));
+            return;
+        }
+        if (client.inFlight.get() >= maxInFlightPerClient) {
+            rejected++;
+            respond(client, InferenceProtocol.encodeResponse(requestId, InferenceProtocol.STATUS_QUOTA_EXCEEDED, null));
+            return;
+        }
+        client.inFlight.incrementAndGet();
+        requests.add(new Request(client, requestId, type, data, System.nanoTime()));
+    }
+
+    private void write(SelectionKey key, Client client) throws IOException {
+        ByteBuffer buffer;
+        while (null != (buffer = client.output.peek())) {
+            client.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            client.output.poll();
+        }
+        // Anything queued after this is announced through pendingWrites again.
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void respond(Client client, ByteBuffer response) {
+        if (!client.output.offer(response)) {
+            // Not reading its responses; it gets disconnected rather than buffered for.
+            client.overflowed = true;
+        }
+        pendingWrites.add(client);
+        selector.wakeup();
+    }
+
+    private void close(SelectionKey key) {
+        if (key.isValid() && key.attachment() instanceof Client) {
+            clients--;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void batchLoop() {
+        ArrayList<Request> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (running) {
+                Request first = requests.take();
+                batch.add(first);
+                // Requests that queued up while the last batch ran go in regardless of the window.
+                requests.drainTo(batch, maxBatchSize - 1);
+                long deadline = first.receivedNanos + batchWindowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    Request next = requests.poll(wait, TimeUnit.NANOSECONDS);
+                    if (null == next) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                process(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopping.
+        }
+    }
+
+    private void process(List<Request> batch) {
+        try {
+            ArrayList<Request> accepted = new ArrayList<>(batch.size());
+            ArrayList<float[]> inputs = new ArrayList<>(batch.size());
+            for (Request request : batch) {
+                float[] input = (request.type == InferenceProtocol.TYPE_TENSOR) ?
+                        InferenceProtocol.decodeTensor(request.data) : backend.preprocess(request.data);
+                if (null == input) {
+                    badRequests.incrementAndGet();
+                    finish(request, InferenceProtocol.STATUS_BAD_REQUEST, null);
+                } else {
+                    accepted.add(request);
+                    inputs.add(input);
+                }
+            }
+            if (accepted.isEmpty()) {
+                return;
+            }
+
+            List<List<ClassificationResult>> results = backend.classify(inputs);
+
+            batches++;
+            batchedRequests += accepted.size();
+            if (accepted.size() > maxBatch) {
+                maxBatch = accepted.size();
+            }
+            for (int i = 0; i < accepted.size(); ++i) {
+                finish(accepted.get(i), InferenceProtocol.STATUS_OK, results.get(i));
+            }
+        } catch (RuntimeException e) {
+            // Whatever failed, the rest of the batch gets an answer and the next batch runs.
+            failedBatches++;
+            for (Request request : batch) {
+                if (!request.answered) {
+                    finish(request, InferenceProtocol.STATUS_ERROR, null);
+                }
+            }
+        }
+    }
+
+    private void finish(Request request, byte status, List<ClassificationResult> results) {
+        request.answered = true;
+        long serviceNanos = System.nanoTime() - request.receivedNanos;
+        served++;
+        totalServiceNanos += serviceNanos;
+        if (serviceNanos > maxServiceNanos) {
+            maxServiceNanos = serviceNanos;
+        }
+        request.client.inFlight.decrementAndGet();
+        if (request.client.channel.isOpen()) {
+            respond(request.client, InferenceProtocol.encodeResponse(request.requestId, status, results));
+        }
+    }
+
+    public long getServed() {
+        return served;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public float getMeanBatchSize() {
+        long count = batches;
+        return (count == 0) ? 0 : (float) batchedRequests / count;
+    }
+
+    @Override
+    public String toString() {
+        long count = served;
+        return "served=" + count + " rejected=" + rejected + " bad=" + badRequests.get() +
+                " disconnected=" + disconnected + " refused=" + refused + " batches=" + batches + " failed=" + failedBatches +
+                " batch mean=" + getMeanBatchSize() + " max=" + maxBatch +
+                " service mean=" + ((count == 0) ? 0 : totalServiceNanos / 1e6f / count) + "ms max=" +
+                maxServiceNanos / 1e6f + "ms";
+    }
+}
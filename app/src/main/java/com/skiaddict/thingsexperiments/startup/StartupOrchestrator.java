@@ -0,0 +1,250 @@
+package com.skiaddict.thingsexperiments.startup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs startup work as a graph of named tasks. A task starts as soon as all of its
+ * dependencies have succeeded, so independent tasks run in parallel. A task that fails or
+ * times out only takes down the tasks that depend on it. The listener hears about "ready"
+ * as soon as the tasks named as the minimum set have finished, without waiting for the rest.
+ * If any of them failed, timed out or was skipped, "ready" is degraded and names them, so the
+ * device can still come up without the missing peripherals.
+ */
+
+public class StartupOrchestrator {
+
+    public interface InitTask {
+        void init() throws Exception;
+    }
+
+    public enum State {
+        PENDING, RUNNING, SUCCEEDED, FAILED, TIMED_OUT, SKIPPED
+    }
+
+    public interface Listener {
+        void onTaskFinished(String name, State state, long durationMillis, Throwable error);
+        /**
+         * @param unavailable ready set tasks that did not succeed, empty if none.
+         */
+        void onReady(long elapsedMillis, List<String> unavailable);
+        void onAllFinished(Map<String, Long> durationsMillis, long elapsedMillis);
+    }
+
+    private static class Node {
+        final String name;
+        final InitTask task;
+        final long timeoutMillis;
+        final boolean mainThread;
+        final List<Node> dependencies = new ArrayList<>();
+        final List<Node> dependents = new ArrayList<>();
+
+        State state = State.PENDING;
+        long startNanos;
+        long durationMillis;
+        Thread thread;
+        ScheduledFuture<?> timeout;
+
+        Node(String name, InitTask task, long timeoutMillis, boolean mainThread) {
+            this.name = name;
+            this.task = task;
+            this.timeoutMillis = timeoutMillis;
+            this.mainThread = mainThread;
+        }
+
+        boolean isFinished() {
+            return state != State.PENDING && state != State.RUNNING;
+        }
+    }
+
+    private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>();
+    private final Set<String> readySet = new HashSet<>();
+    private final Executor mainThreadExecutor;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timeouts;
+    private final Listener listener;
+
+    private long startNanos;
+    private boolean ready;
+    private int finished;
+
+    /**
+     * @param mainThreadExecutor runs tasks added with {@code mainThread} set, for peripherals
+     *                           whose callbacks bind to the calling thread's looper.
+     */
+    public StartupOrchestrator(Executor mainThreadExecutor, int workerThreads, Listener listener) {
+        this.mainThreadExecutor = mainThreadExecutor;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.timeouts = Executors.newSingleThreadScheduledExecutor();
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a task. Dependencies must already have been added, which also rules out cycles.
+     */
+    public synchronized void addTask(String name, long timeoutMillis, boolean mainThread, InitTask task,
+                                     String... dependencies) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate startup task " + name);
+        }
+        Node node = new Node(name, task, timeoutMillis, mainThread);
+        for (String dependency : dependencies) {
+            Node parent = nodes.get(dependency);
+            if (null == parent) {
+                throw new IllegalArgumentException("Startup task " + name + " depends on unknown task " + dependency);
+            }
+            node.dependencies.add(parent);
+            parent.dependents.add(node);
+        }
+        nodes.put(name, node);
+    }
+
+    /**
+     * Names the tasks that must succeed before the device is considered ready.
+     */
+    public synchronized void setReadySet(String... names) {
+        readySet.clear();
+        readySet.addAll(Arrays.asList(names));
+    }
+
+    public synchronized void start() {
+        startNanos = System.nanoTime();
+        for (Node node : nodes.values()) {
+            if (node.dependencies.isEmpty()) {
+                launch(node);
+            }
+        }
+    }
+
+    private void launch(final Node node) {
+        node.state = State.RUNNING;
+        node.startNanos = System.nanoTime();
+        node.timeout = timeouts.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish(node, State.TIMED_OUT, null);
+            }
+        }, node.timeoutMillis, TimeUnit.MILLISECONDS);
+
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StartupOrchestrator.this) {
+                    node.thread = Thread.currentThread();
+                }
+                try {
+                    node.task.init();
+                    finish(node, State.SUCCEEDED, null);
+                } catch (Exception e) {
+                    finish(node, State.FAILED, e);
+                } finally {
+                    synchronized (StartupOrchestrator.this) {
+                        node.thread = null;
+                    }
+                }
+            }
+        };
+        if (node.mainThread) {
+            mainThreadExecutor.execute(runnable);
+        } else {
+            workers.execute(runnable);
+        }
+    }
+
+    private void finish(Node node, State state, Throwable error) {
+        ArrayList<Node> finishedNodes = new ArrayList<>();
+        Map<String, Long> durations = null;
+        long elapsedMillis;
+        synchronized (this) {
+            if (node.isFinished()) {
+                // Completed after timing out (or vice versa); the first outcome stands.
+                return;
+            }
+            finishLocked(node, state, finishedNodes);
+            elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+
+            if (finished == nodes.size()) {
+                durations = new LinkedHashMap<>();
+                for (Node n : nodes.values()) {
+                    durations.put(n.name, n.durationMillis);
+                }
+                workers.shutdown();
+                timeouts.shutdownNow();
+            }
+        }
+
+        for (Node n : finishedNodes) {
+            listener.onTaskFinished(n.name, n.state, n.durationMillis, (n == node) ? error : null);
+        }
+        checkReady(elapsedMillis);
+        if (null != durations) {
+            listener.onAllFinished(Collections.unmodifiableMap(durations), elapsedMillis);
+        }
+    }
+
+    private void finishLocked(Node node, State state, List<Node> finishedNodes) {
+        node.state = state;
+        node.durationMillis = (state == State.SKIPPED) ? 0 : (System.nanoTime() - node.startNanos) / 1000000;
+        if (null != node.timeout) {
+            node.timeout.cancel(false);
+        }
+        if (state == State.TIMED_OUT && null != node.thread && !node.mainThread) {
+            node.thread.interrupt();
+        }
+        finished++;
+        finishedNodes.add(node);
+
+        for (Node dependent : node.dependents) {
+            if (dependent.state != State.PENDING) {
+                continue;
+            }
+            if (state != State.SUCCEEDED) {
+                finishLocked(dependent, State.SKIPPED, finishedNodes);
+            } else if (allSucceeded(dependent.dependencies)) {
+                launch(dependent);
+            }
+        }
+    }
+
+    private void checkReady(long elapsedMillis) {
+        ArrayList<String> unavailable = new ArrayList<>();
+        synchronized (this) {
+            if (ready) {
+                return;
+            }
+            for (String name : readySet) {
+                Node node = nodes.get(name);
+                if (null == node) {
+                    unavailable.add(name);
+                } else if (!node.isFinished()) {
+                    return;
+                } else if (node.state != State.SUCCEEDED) {
+                    unavailable.add(name);
+                }
+            }
+            ready = true;
+        }
+        listener.onReady(elapsedMillis, Collections.unmodifiableList(unavailable));
+    }
+
+    private static boolean allSucceeded(List<Node> dependencies) {
+        for (Node dependency : dependencies) {
+            if (dependency.state != State.SUCCEEDED) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package com.skiaddict.thingsexperiments.telemetry;
+
+import android.util.Log;
+
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+
+import java.util.Map;
+
+/**
+ * Sends telemetry batches to the Firebase realtime database as multi-path updates under a
+ * fixed reference.
+ */
+
+public class FirebaseTelemetryRemote implements TelemetryRemote {
+    private static final String TAG = FirebaseTelemetryRemote.class.getSimpleName();
+
+    private final DatabaseReference reference;
+
+    public FirebaseTelemetryRemote(DatabaseReference reference) {
+        this.reference = reference;
+    }
+
+    @Override
+    public void send(Map<String, Object> updates, final Callback callback) {
+        reference.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+                if (null != databaseError) {
+                    Log.d(TAG, "Telemetry update failed: " + databaseError.getMessage());
+                }
+                callback.onComplete(null == databaseError);
+            }
+        });
+    }
+}
@@ -0,0 +1,41 @@
+package com.skiaddict.thingsexperiments.telemetry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process stand-in for the realtime database. Applies updates to a map and completes
+ * immediately, or fails every update while {@link #setFailing(boolean)} is set.
+ */
+
+public class LocalTelemetryRemote implements TelemetryRemote {
+
+    private final Map<String, Object> values = new HashMap<>();
+    private int updates;
+    private boolean failing;
+
+    @Override
+    public void send(Map<String, Object> updates, Callback callback) {
+        boolean success;
+        synchronized (this) {
+            success = !failing;
+            if (success) {
+                values.putAll(updates);
+                this.updates++;
+            }
+        }
+        callback.onComplete(success);
+    }
+
+    public synchronized void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public synchronized Object get(String path) {
+        return values.get(path);
+    }
+
+    public synchronized int getUpdates() {
+        return updates;
+    }
+}
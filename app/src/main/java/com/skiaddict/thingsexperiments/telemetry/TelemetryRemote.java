@@ -0,0 +1,20 @@
+package com.skiaddict.thingsexperiments.telemetry;
+
+import java.util.Map;
+
+/**
+ * Where {@link TelemetrySync} sends its batches.
+ */
+
+public interface TelemetryRemote {
+
+    interface Callback {
+        void onComplete(boolean success);
+    }
+
+    /**
+     * Writes all of {@code updates} (path to value) as one update. The callback may be called on
+     * any thread, including the calling one.
+     */
+    void send(Map<String, Object> updates, Callback callback);
+}
@@ -0,0 +1,215 @@
+package com.skiaddict.thingsexperiments.telemetry;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers telemetry samples on the device and sends them to a {@link TelemetryRemote} in
+ * batches on a fixed schedule.
+ *
+ * Samples are compressed before they are buffered: a value within its key's epsilon of the
+ * last accepted value is dropped (deadband), and a key that changes again before the next
+ * batch only keeps its latest value. Each batch therefore holds just the keys that changed
+ * since the last one (delta). Values are sent whole, since readers of the database need
+ * absolute values. Only one batch is in flight at a time; a failed batch is merged back into
+ * the buffer behind any newer values and retried with the next one.
+ */
+
+public class TelemetrySync {
+
+    // Batch timestamp path, written with every batch.
+    public static final String UPDATED_KEY = "updated";
+
+    private static class Sample {
+        double value;
+        // When the key first changed since it was last sent, for lag.
+        long firstTimestamp;
+
+        Sample(double value, long firstTimestamp) {
+            this.value = value;
+            this.firstTimestamp = firstTimestamp;
+        }
+    }
+
+    private final TelemetryRemote remote;
+    private final long batchIntervalMillis;
+    private final Map<String, Double> epsilons = new HashMap<>();
+    // Deadband reference per key: the last value that was not suppressed.
+    private final Map<String, Double> lastAccepted = new HashMap<>();
+    // Keys changed since the last batch, oldest change first.
+    private final LinkedHashMap<String, Sample> pending = new LinkedHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+    private boolean inFlight;
+
+    private long samples;
+    private long suppressed;
+    private long merged;
+    private long batches;
+    private long failedBatches;
+    private long valuesSent;
+    private long bytesSent;
+    private int maxBatchSize;
+    private long totalLagMillis;
+    private long maxLagMillis;
+
+    public TelemetrySync(TelemetryRemote remote, long batchIntervalMillis) {
+        this.remote = remote;
+        this.batchIntervalMillis = batchIntervalMillis;
+    }
+
+    /**
+     * Sets the deadband for a key. Keys without one send every change.
+     */
+    public synchronized void setEpsilon(String key, double epsilon) {
+        epsilons.put(key, epsilon);
+    }
+
+    public synchronized void record(String key, double value, long timestamp) {
+        samples++;
+
+        Double last = lastAccepted.get(key);
+        Double epsilon = epsilons.get(key);
+        if (null != last && Math.abs(value - last) <= ((null == epsilon) ? 0 : epsilon)) {
+            suppressed++;
+            return;
+        }
+        lastAccepted.put(key, value);
+
+        Sample sample = pending.get(key);
+        if (null != sample) {
+            sample.value = value;
+            merged++;
+        } else {
+            pending.put(key, new Sample(value, timestamp));
+        }
+    }
+
+    public synchronized void start() {
+        if (null != scheduler) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, batchIntervalMillis, batchIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the schedule and sends whatever is buffered.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (null != scheduler) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends the buffered changes as one batch, unless the previous batch is still in flight.
+     */
+    public void flush() {
+        final LinkedHashMap<String, Sample> batch;
+        Map<String, Object> updates = new HashMap<>();
+        int bytes = 0;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (inFlight || pending.isEmpty()) {
+                return;
+            }
+            inFlight = true;
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+
+        for (Map.Entry<String, Sample> entry : batch.entrySet()) {
+            updates.put(entry.getKey(), entry.getValue().value);
+            bytes += encodedSize(entry.getKey(), Double.toString(entry.getValue().value));
+        }
+        updates.put(UPDATED_KEY, now);
+        bytes += encodedSize(UPDATED_KEY, Long.toString(now));
+
+        final int batchBytes = bytes;
+        remote.send(updates, new TelemetryRemote.Callback() {
+            @Override
+            public void onComplete(boolean success) {
+                complete(batch, batchBytes, success);
+            }
+        });
+    }
+
+    private synchronized void complete(LinkedHashMap<String, Sample> batch, int bytes, boolean success) {
+        inFlight = false;
+        if (!success) {
+            failedBatches++;
+            for (Map.Entry<String, Sample> entry : batch.entrySet()) {
+                Sample newer = pending.get(entry.getKey());
+                if (null == newer) {
+                    pending.put(entry.getKey(), entry.getValue());
+                } else {
+                    newer.firstTimestamp = Math.min(newer.firstTimestamp, entry.getValue().firstTimestamp);
+                }
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long lagMillis = 0;
+        for (Sample sample : batch.values()) {
+            lagMillis = Math.max(lagMillis, now - sample.firstTimestamp);
+        }
+        batches++;
+        valuesSent += batch.size();
+        bytesSent += bytes;
+        maxBatchSize = Math.max(maxBatchSize, batch.size());
+        totalLagMillis += lagMillis;
+        maxLagMillis = Math.max(maxLagMillis, lagMillis);
+    }
+
+    // Size of the entry in the JSON update: "key":value,
+    private static int encodedSize(String key, String value) {
+        return key.length() + value.length() + 4;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized long getFailedBatches() {
+        return failedBatches;
+    }
+
+    public synchronized float getBytesPerSample() {
+        return (samples == 0) ? 0 : (float) bytesSent / samples;
+    }
+
+    public synchronized float getMeanBatchSize() {
+        return (batches == 0) ? 0 : (float) valuesSent / batches;
+    }
+
+    public synchronized float getMeanLagMillis() {
+        return (batches == 0) ? 0 : (float) totalLagMillis / batches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "samples=" + samples + " suppressed=" + suppressed + " merged=" + merged + " batches=" + batches +
+                " failed=" + failedBatches + " bytes=" + bytesSent + " (" + getBytesPerSample() + "/sample)" +
+                " batch mean=" + getMeanBatchSize() + " max=" + maxBatchSize +
+                " lag mean=" + getMeanLagMillis() + "ms max=" + maxLagMillis + "ms";
+    }
+}
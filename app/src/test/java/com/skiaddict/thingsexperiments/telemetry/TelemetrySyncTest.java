@@ -0,0 +1,92 @@
+package com.skiaddict.thingsexperiments.telemetry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs {@link TelemetrySync} against a {@link LocalTelemetryRemote}, which completes every
+ * batch before {@link TelemetrySync#flush()} returns.
+ */
+
+public class TelemetrySyncTest {
+
+    private LocalTelemetryRemote remote;
+    private TelemetrySync sync;
+
+    @Before
+    public void setUp() {
+        remote = new LocalTelemetryRemote();
+        sync = new TelemetrySync(remote, 1000);
+    }
+
+    @Test
+    public void suppressesValuesWithinDeadband() {
+        sync.setEpsilon("temperature", 0.5);
+
+        sync.record("temperature", 20.0, 1);
+        sync.flush();
+        sync.record("temperature", 20.4, 2);
+        sync.flush();
+        assertEquals(1, remote.getUpdates());
+        assertEquals(20.0, remote.get("temperature"));
+
+        sync.record("temperature", 20.6, 3);
+        sync.flush();
+        assertEquals(2, remote.getUpdates());
+        assertEquals(20.6, remote.get("temperature"));
+    }
+
+    @Test
+    public void sendsEveryChangeWithoutEpsilon() {
+        sync.record("pressure", 1000.0, 1);
+        sync.flush();
+        sync.record("pressure", 1000.0, 2);
+        sync.flush();
+        sync.record("pressure", 1000.1, 3);
+        sync.flush();
+        assertEquals(2, remote.getUpdates());
+        assertEquals(1000.1, remote.get("pressure"));
+    }
+
+    @Test
+    public void mergesChangesToOneKeyWithinBatch() {
+        sync.record("temperature", 20.0, 1);
+        sync.record("temperature", 21.0, 2);
+        sync.record("temperature", 22.0, 3);
+        sync.record("pressure", 1000.0, 4);
+        sync.flush();
+
+        assertEquals(1, remote.getUpdates());
+        assertEquals(1, sync.getBatches());
+        assertEquals(4, sync.getSamples());
+        assertEquals(2f, sync.getMeanBatchSize(), 0f);
+        assertEquals(22.0, remote.get("temperature"));
+        assertEquals(1000.0, remote.get("pressure"));
+    }
+
+    @Test
+    public void requeuesFailedBatchBehindNewerValues() {
+        remote.setFailing(true);
+        sync.record("temperature", 20.0, 1);
+        sync.record("pressure", 1000.0, 2);
+        sync.flush();
+        assertEquals(1, sync.getFailedBatches());
+        assertEquals(0, sync.getBatches());
+        assertNull(remote.get("temperature"));
+
+        remote.setFailing(false);
+        sync.record("temperature", 21.0, 3);
+        sync.flush();
+        assertEquals(1, sync.getBatches());
+        assertEquals(1, remote.getUpdates());
+        assertEquals(21.0, remote.get("temperature"));
+        assertEquals(1000.0, remote.get("pressure"));
+
+        // Nothing left behind once the retry went through.
+        sync.flush();
+        assertEquals(1, remote.getUpdates());
+    }
+}